@@ -0,0 +1,152 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.sps.data;
+
+import com.google.common.hash.Hashing;
+import com.google.gson.Gson;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** 
+ * A JSON response body serialized once to UTF-8 bytes, and gzipped once if it is large enough, with
+ * a strong ETag per encoding derived from the content so repeat requests can be answered with 304
+ * Not Modified. Serving it is a header check and a single write of precomputed bytes.
+ */
+public final class CachedJson {
+
+  private static final Gson GSON = new Gson();
+
+  // Bodies smaller than this are not worth compressing.
+  private static final int MIN_GZIP_BYTES = 1024;
+
+  private final byte[] body;
+  private final String etag;
+  // Null if the body is too small to compress.
+  private final byte[] gzipBody;
+  private final String gzipEtag;
+
+  private CachedJson(byte[] body) {
+    String hash = Hashing.md5().hashBytes(body).toString();
+    this.body = body;
+    this.etag = "\"" + hash + "\"";
+    if (body.length >= MIN_GZIP_BYTES) {
+      this.gzipBody = gzip(body);
+      this.gzipEtag = "\"" + hash + "-gzip\"";
+    } else {
+      this.gzipBody = null;
+      this.gzipEtag = null;
+    }
+  }
+
+  public static CachedJson of(Object value) {
+    return fromJson(GSON.toJson(value));
+  }
+
+  /** Wraps JSON that has already been serialized. */
+  public static CachedJson fromJson(String json) {
+    return new CachedJson(json.getBytes(StandardCharsets.UTF_8));
+  }
+
+  public String getEtag() {
+    return etag;
+  }
+
+  /** 
+   * Writes the body, gzipped if the client accepts it, with a single stream write, or a bare 304
+   * if the client already has it.
+   */
+  public void writeTo(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    // Let browsers keep the body but revalidate it on every use.
+    writeTo(request, response, "no-cache");
+  }
+
+  /** 
+   * Like {@link #writeTo(HttpServletRequest, HttpServletResponse)} with the given Cache-Control
+   * header. Vary headers the caller already set are kept.
+   */
+  public void writeTo(HttpServletRequest request, HttpServletResponse response, String cacheControl) 
+      throws IOException {
+    boolean useGzip = gzipBody != null && acceptsGzip(request.getHeader("Accept-Encoding"));
+    String currentEtag = useGzip ? gzipEtag : etag;
+
+    response.setHeader("Cache-Control", cacheControl);
+    if (gzipBody != null) {
+      response.addHeader("Vary", "Accept-Encoding");
+    }
+    response.setHeader("ETag", currentEtag);
+    if (matches(request.getHeader("If-None-Match"), currentEtag)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
+    byte[] bytes = useGzip ? gzipBody : body;
+    response.setContentType("application/json;charset=UTF-8");
+    if (useGzip) {
+      response.setHeader("Content-Encoding", "gzip");
+    }
+    response.setContentLength(bytes.length);
+    response.getOutputStream().write(bytes);
+  }
+
+  private static boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String tag : ifNoneMatch.split(",")) {
+      tag = tag.trim();
+      // If-None-Match uses weak comparison, so ignore a W/ prefix added by a proxy.
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      if (tag.equals("*") || tag.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.trim().split(";");
+      String name = parts[0].trim();
+      if (!name.equalsIgnoreCase("gzip") && !name.equals("*")) {
+        continue;
+      }
+      // "gzip;q=0" means the client explicitly refuses it.
+      boolean refused = parts.length > 1 && parts[1].trim().matches("q=0(\\.0*)?");
+      return !refused;
+    }
+    return false;
+  }
+
+  private static byte[] gzip(byte[] bytes) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4);
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+      gzip.write(bytes);
+    } catch (IOException e) {
+      // Writing to memory cannot fail.
+      throw new IllegalStateException(e);
+    }
+    return out.toByteArray();
+  }
+}
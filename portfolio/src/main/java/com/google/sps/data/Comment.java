@@ -14,6 +14,8 @@
 
 package com.google.sps.data;
 
+import com.google.appengine.api.datastore.Entity;
+
 /** A comment on the blog page. */
 public final class Comment {
 
@@ -25,6 +27,8 @@ public final class Comment {
   private final long timestampMillis;
   private final String commentInput;
   private final String fileUrl;
+  // Resized variants of the image at fileUrl, for an img srcset attribute.
+  private final String srcset;
 
   public Comment(long id, String name, String email, long timestampMillis, 
                  String commentInput, String fileUrl) {
@@ -34,6 +38,19 @@ public final class Comment {
     this.timestampMillis = timestampMillis;
     this.commentInput = commentInput;
     this.fileUrl = fileUrl;
+    this.srcset = ImageVariants.srcset(fileUrl);
+  }
+
+  /** Builds a Comment from a stored comment entity. */
+  public static Comment fromEntity(Entity entity) {
+    return new Comment(
+      entity.getKey().getId(),
+      (String) entity.getProperty("name"),
+      (String) entity.getProperty("email"),
+      (long) entity.getProperty("timestampMillis"),
+      (String) entity.getProperty("commentInput"),
+      (String) entity.getProperty("fileUrl")
+    );
   }
 
   public static String getEntityKind() {
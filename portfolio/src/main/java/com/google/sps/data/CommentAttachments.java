@@ -0,0 +1,125 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.appengine.api.blobstore.BlobInfo;
+import com.google.appengine.api.blobstore.BlobInfoFactory;
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import java.util.Optional;
+
+/**
+ * Processes images attached to comments off the submission path. A new comment is stored with
+ * its blob key and an {@code attachmentStatus} of {@code pending}, and a push task is queued;
+ * the task checks the upload, resolves its serving URL and patches the comment. Until then the
+ * comment is shown without its image. Tasks are retried by the queue until they succeed.
+ */
+public final class CommentAttachments {
+
+  /** Where the task queue delivers attachment tasks; see AttachmentTaskServlet. */
+  public static final String TASK_URL = "/tasks/comment-attachment";
+  public static final String COMMENT_PARAM = "comment";
+  public static final String BLOB_PARAM = "blob";
+
+  public static final String STATUS_PROPERTY = "attachmentStatus";
+  public static final String STATUS_PENDING = "pending";
+  public static final String STATUS_READY = "ready";
+
+  private CommentAttachments() {}
+
+  /** 
+   * Returns a key for a new comment. Comments with an attachment need their key before they are
+   * stored, since the task naming them may be queued before a batched write assigns one.
+   */
+  public static Key allocateCommentKey() {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    return datastore.allocateIds(Comment.getEntityKind(), 1).getStart();
+  }
+
+  /** Queues processing of the image uploaded with the comment stored under {@code commentKey}. */
+  public static void enqueue(Key commentKey, BlobKey blobKey) {
+    QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withUrl(TASK_URL)
+        .param(COMMENT_PARAM, KeyFactory.keyToString(commentKey))
+        .param(BLOB_PARAM, blobKey.getKeyString()));
+  }
+
+  /**
+   * Resolves the attachment of one comment and stores the result on it. Returns false if the
+   * comment has not been stored yet, in which case the task should be retried; if it was deleted
+   * in the meantime {@code giveUp} discards the upload instead.
+   */
+  public static boolean process(Key commentKey, BlobKey blobKey, boolean giveUp) {
+    Optional<String> fileUrl = Optional.empty();
+    BlobInfo blobInfo = new BlobInfoFactory().loadBlobInfo(blobKey);
+    // An empty upload means the form was submitted without a file. (live server)
+    if (blobInfo != null && blobInfo.getSize() > 0) {
+      fileUrl = ServingUrlCache.getInstance().get(blobKey);
+    }
+
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Transaction transaction = datastore.beginTransaction();
+    boolean keepBlob;
+    try {
+      Entity entity;
+      try {
+        entity = datastore.get(transaction, commentKey);
+      } catch (EntityNotFoundException e) {
+        if (!giveUp) {
+          return false;
+        }
+        entity = null;
+      }
+      if (entity == null || !STATUS_PENDING.equals(entity.getProperty(STATUS_PROPERTY))) {
+        // Deleted, or already handled by an earlier attempt of this task.
+        keepBlob = entity != null && blobKey.equals(entity.getProperty("blobKey"));
+      } else {
+        entity.setProperty("fileUrl", fileUrl.orElse(null));
+        if (fileUrl.isPresent()) {
+          entity.setUnindexedProperty(STATUS_PROPERTY, STATUS_READY);
+        } else {
+          // Not a valid image, so nothing will ever reference the upload.
+          entity.removeProperty(STATUS_PROPERTY);
+          entity.removeProperty("blobKey");
+        }
+        datastore.put(transaction, entity);
+        keepBlob = fileUrl.isPresent();
+      }
+      transaction.commit();
+    } finally {
+      if (transaction.isActive()) {
+        transaction.rollback();
+      }
+    }
+
+    if (!keepBlob) {
+      if (blobInfo != null) {
+        BlobstoreServiceFactory.getBlobstoreService().delete(blobKey);
+      }
+      ServingUrlCache.getInstance().invalidate(blobKey);
+    } else if (fileUrl.isPresent()) {
+      CommentCache.getInstance().invalidate();
+    }
+    return true;
+  }
+}
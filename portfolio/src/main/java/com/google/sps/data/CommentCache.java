@@ -0,0 +1,146 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read-through cache in front of the newest-comments query. Limits are rounded up to a power of
+ * two bucket so a handful of entries serve every page size; entries expire after a short TTL and
+ * are dropped whenever a comment is added or deleted on this instance.
+ */
+public final class CommentCache {
+
+  // Largest limit served from the cache; bigger requests are streamed from the Datastore.
+  public static final int MAX_CACHED_LIMIT = 128;
+
+  private static final int MIN_BUCKET = 8;
+  private static final int MAX_BUCKETS = 8;
+  private static final long TTL_SECONDS = 30;
+
+  private static final CommentCache INSTANCE = new CommentCache();
+
+  /** 
+   * The newest comments of one bucket, the Datastore cursor after each of them, and the JSON
+   * bodies already serialized from them. The serialized views live and die with the bucket.
+   */
+  private static class Bucket {
+    private final List<Comment> comments;
+    private final List<Cursor> cursors;
+    private final ConcurrentMap<String, CachedJson> json = new ConcurrentHashMap<>();
+
+    private Bucket(List<Comment> comments, List<Cursor> cursors) {
+      this.comments = comments;
+      this.cursors = cursors;
+    }
+  }
+
+  private final LoadingCache<Integer, Bucket> buckets = CacheBuilder.newBuilder()
+      .maximumSize(MAX_BUCKETS)
+      .expireAfterWrite(TTL_SECONDS, TimeUnit.SECONDS)
+      .build(new CacheLoader<Integer, Bucket>() {
+        @Override
+        public Bucket load(Integer bucketSize) {
+          return loadBucket(bucketSize);
+        }
+      });
+
+  private CommentCache() {}
+
+  public static CommentCache getInstance() {
+    return INSTANCE;
+  }
+
+  /** 
+   * Returns the {@code limit} newest comments and the cursor that continues after them, or a
+   * null cursor if there are no older comments.
+   */
+  public CommentPage getNewest(int limit) {
+    if (limit <= 0) {
+      return new CommentPage(Collections.<Comment>emptyList(), null);
+    }
+
+    return toPage(getBucket(limit), limit);
+  }
+
+  /** 
+   * Returns the serialized JSON of the {@code limit} newest comments, either as a plain array or,
+   * if {@code asPage} is set, as a {@link CommentPage}. The bytes are reused until the cache
+   * entry expires or is invalidated.
+   */
+  public CachedJson getNewestJson(int limit, boolean asPage) {
+    if (limit <= 0) {
+      return CachedJson.of(asPage ? getNewest(limit) : getNewest(limit).getComments());
+    }
+
+    Bucket bucket = getBucket(limit);
+    String key = (asPage ? "page:" : "list:") + limit;
+    CachedJson json = bucket.json.get(key);
+    if (json == null) {
+      CommentPage page = toPage(bucket, limit);
+      json = CachedJson.of(asPage ? page : page.getComments());
+      bucket.json.putIfAbsent(key, json);
+    }
+    return json;
+  }
+
+  /** Drops every cached bucket, e.g. after a comment is stored or deleted. */
+  public void invalidate() {
+    buckets.invalidateAll();
+  }
+
+  private Bucket getBucket(int limit) {
+    return limit > MAX_CACHED_LIMIT ? loadBucket(limit) : buckets.getUnchecked(toBucket(limit));
+  }
+
+  private static CommentPage toPage(Bucket bucket, int limit) {
+    int count = Math.min(limit, bucket.comments.size());
+    String cursor = null;
+    if (count == limit) {
+      cursor = bucket.cursors.get(count - 1).toWebSafeString();
+    }
+    return new CommentPage(bucket.comments.subList(0, count), cursor);
+  }
+
+  private static int toBucket(int limit) {
+    return Math.max(MIN_BUCKET, Integer.highestOneBit(limit - 1) << 1);
+  }
+
+  private static Bucket loadBucket(int bucketSize) {
+    QueryResultIterator<Entity> results = CommentFeedQuery.run(
+        FetchOptions.Builder.withLimit(bucketSize).chunkSize(bucketSize));
+
+    List<Comment> comments = new ArrayList<>();
+    List<Cursor> cursors = new ArrayList<>();
+    while (results.hasNext()) {
+      comments.add(Comment.fromEntity(results.next()));
+      cursors.add(results.getCursor());
+    }
+    return new Bucket(Collections.unmodifiableList(comments), Collections.unmodifiableList(cursors));
+  }
+}
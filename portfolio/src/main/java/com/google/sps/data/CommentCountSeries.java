@@ -0,0 +1,294 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded history of the comment count for the comments chart. Points are kept at three
+ * resolutions (per minute, hourly and daily), each in a fixed-size ring, so memory stays the same
+ * however long the app runs. Writers never lock. Every instance periodically merges its points into
+ * a single Datastore entity, so all instances chart the same series.
+ */
+public final class CommentCountSeries {
+
+  private static final Logger LOGGER = Logger.getLogger(CommentCountSeries.class.getName());
+
+  private static final String STORE_KIND = "CommentCountSeries";
+  private static final String STORE_NAME = "series";
+  private static final long SYNC_INTERVAL_MILLIS = 10 * 1000;
+  private static final long MAX_COUNT = 0xFFFFFFFFL;
+
+  private static final CommentCountSeries INSTANCE = new CommentCountSeries();
+
+  /** 
+   * A ring of points at one resolution. Each point is a single long packing the bucket start in
+   * epoch seconds (high 32 bits) with the count (low 32 bits), so it is always read and written
+   * atomically. The newest bucket stays in {@code head} and is updated in place until a later
+   * bucket replaces it and pushes it into the ring.
+   */
+  static class Tier {
+    private final String name;
+    private final long bucketSeconds;
+    private final AtomicLongArray ring;
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    Tier(String name, long bucketSeconds, int capacity) {
+      this.name = name;
+      this.bucketSeconds = bucketSeconds;
+      this.ring = new AtomicLongArray(capacity);
+    }
+
+    void record(long epochSeconds, long count) {
+      long point = pack(epochSeconds - epochSeconds % bucketSeconds, count);
+      while (true) {
+        long current = head.get();
+        if (current != 0 && timeOf(current) > timeOf(point)) {
+          // A newer bucket has already started; this point is too late for the chart.
+          return;
+        }
+        if (head.compareAndSet(current, point)) {
+          if (current != 0 && timeOf(current) != timeOf(point)) {
+            push(current);
+          }
+          return;
+        }
+      }
+    }
+
+    private void push(long point) {
+      int index = (int) (written.getAndIncrement() % ring.length());
+      while (true) {
+        long existing = ring.get(index);
+        // A writer that claimed this slot a lap later may have filled it in first; keep theirs.
+        if (existing != 0 && timeOf(existing) > timeOf(point)) {
+          return;
+        }
+        if (ring.compareAndSet(index, existing, point)) {
+          return;
+        }
+      }
+    }
+
+    /** Returns this tier's points, oldest first. */
+    long[] snapshot() {
+      long total = written.get();
+      int size = (int) Math.min(total, ring.length());
+      long[] points = new long[size + 1];
+      int count = 0;
+      for (long slot = total - size; slot < total; slot++) {
+        long point = ring.get((int) (slot % ring.length()));
+        // Skip slots claimed by a writer that has not filled them in yet.
+        if (point != 0) {
+          points[count++] = point;
+        }
+      }
+      long current = head.get();
+      if (current != 0) {
+        points[count++] = current;
+      }
+      return merge(Arrays.copyOf(points, count), new long[0], ring.length() + 1);
+    }
+  }
+
+  private final Tier[] tiers = {
+    new Tier("minutes", 60, 360),
+    new Tier("hours", 60 * 60, 24 * 14),
+    new Tier("days", 24 * 60 * 60, 2 * 365),
+  };
+
+  private final AtomicLong lastSyncMillis = new AtomicLong();
+
+  // Points of every instance as of the last sync, per tier.
+  private volatile long[][] stored = new long[tiers.length][0];
+  private volatile CachedJson json = CachedJson.of(new LinkedHashMap<String, Long>());
+  // Set when a point is recorded or synced after json was built; json is rebuilt when next read.
+  private final AtomicBoolean jsonStale = new AtomicBoolean();
+
+  private CommentCountSeries() {}
+
+  public static CommentCountSeries getInstance() {
+    return INSTANCE;
+  }
+
+  /** Records the comment count at {@code epochMillis}. */
+  public void record(long epochMillis, long count) {
+    long epochSeconds = epochMillis / 1000;
+    for (Tier tier : tiers) {
+      tier.record(epochSeconds, count);
+    }
+    jsonStale.set(true);
+    syncIfDue();
+  }
+
+  /** 
+   * Returns the series as JSON mapping ISO-8601 timestamps to counts, oldest first. It includes
+   * the points recorded on this instance even if the shared copy is not updated yet.
+   */
+  public CachedJson getJson() {
+    syncIfDue();
+    if (jsonStale.compareAndSet(true, false)) {
+      json = CachedJson.of(toChartData(mergeWithLocal(stored)));
+    }
+    return json;
+  }
+
+  /** Merges with the shared copy if the last sync is old enough. */
+  private void syncIfDue() {
+    long now = System.currentTimeMillis();
+    long last = lastSyncMillis.get();
+    // Only one request per instance syncs at a time; everyone else uses the current copy.
+    if (now - last < SYNC_INTERVAL_MILLIS || !lastSyncMillis.compareAndSet(last, now)) {
+      return;
+    }
+    try {
+      sync();
+    } catch (RuntimeException e) {
+      // Contention, timeouts and other Datastore errors; the local copy is still served.
+      LOGGER.log(Level.WARNING, "could not sync comment count series", e);
+      lastSyncMillis.set(last);
+    }
+  }
+
+  private void sync() {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Key storeKey = KeyFactory.createKey(STORE_KIND, STORE_NAME);
+    Transaction transaction = datastore.beginTransaction();
+    try {
+      Entity entity;
+      long[][] shared = new long[tiers.length][];
+      try {
+        entity = datastore.get(transaction, storeKey);
+        for (int i = 0; i < tiers.length; i++) {
+          shared[i] = decode((Blob) entity.getProperty(tiers[i].name));
+        }
+      } catch (EntityNotFoundException e) {
+        entity = new Entity(storeKey);
+        for (int i = 0; i < tiers.length; i++) {
+          shared[i] = new long[0];
+        }
+      }
+
+      long[][] merged = mergeWithLocal(shared);
+      for (int i = 0; i < tiers.length; i++) {
+        entity.setUnindexedProperty(tiers[i].name, encode(merged[i]));
+      }
+      datastore.put(transaction, entity);
+      transaction.commit();
+
+      stored = merged;
+      jsonStale.set(true);
+    } finally {
+      if (transaction.isActive()) {
+        transaction.rollback();
+      }
+    }
+  }
+
+  private long[][] mergeWithLocal(long[][] shared) {
+    long[][] merged = new long[tiers.length][];
+    for (int i = 0; i < tiers.length; i++) {
+      merged[i] = merge(shared[i], tiers[i].snapshot(), tiers[i].ring.length() + 1);
+    }
+    return merged;
+  }
+
+  /** 
+   * Builds the chart series: the finest tier for the most recent points, then coarser tiers for
+   * the time before each finer tier starts.
+   */
+  private static Map<String, Long> toChartData(long[][] points) {
+    Map<String, Long> chartData = new LinkedHashMap<>();
+    for (int i = points.length - 1; i >= 0; i--) {
+      long end = Long.MAX_VALUE;
+      for (int finer = i - 1; finer >= 0; finer--) {
+        if (points[finer].length > 0) {
+          end = Math.min(end, timeOf(points[finer][0]));
+        }
+      }
+      for (long point : points[i]) {
+        if (timeOf(point) < end) {
+          chartData.put(Instant.ofEpochSecond(timeOf(point)).toString(), countOf(point));
+        }
+      }
+    }
+    return chartData;
+  }
+
+  /** 
+   * Merges two sets of points into one sorted by time, keeping the highest count for a bucket
+   * seen in both and only the newest {@code capacity} buckets.
+   */
+  private static long[] merge(long[] a, long[] b, int capacity) {
+    long[] all = Arrays.copyOf(a, a.length + b.length);
+    System.arraycopy(b, 0, all, a.length, b.length);
+    // Packed points sort by time first and then by count.
+    Arrays.sort(all);
+    int size = 0;
+    for (int i = 0; i < all.length; i++) {
+      if (size > 0 && timeOf(all[size - 1]) == timeOf(all[i])) {
+        size--;
+      }
+      all[size++] = all[i];
+    }
+    return Arrays.copyOfRange(all, Math.max(0, size - capacity), size);
+  }
+
+  private static Blob encode(long[] points) {
+    ByteBuffer buffer = ByteBuffer.allocate(points.length * Long.BYTES);
+    buffer.asLongBuffer().put(points);
+    return new Blob(buffer.array());
+  }
+
+  private static long[] decode(Blob blob) {
+    if (blob == null) {
+      return new long[0];
+    }
+    long[] points = new long[blob.getBytes().length / Long.BYTES];
+    ByteBuffer.wrap(blob.getBytes()).asLongBuffer().get(points);
+    return points;
+  }
+
+  private static long pack(long epochSeconds, long count) {
+    return (epochSeconds << 32) | Math.max(0, Math.min(count, MAX_COUNT));
+  }
+
+  static long timeOf(long point) {
+    return point >>> 32;
+  }
+
+  static long countOf(long point) {
+    return point & MAX_COUNT;
+  }
+}
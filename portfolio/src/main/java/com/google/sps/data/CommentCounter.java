@@ -0,0 +1,226 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Number of stored comments, kept as a sharded counter so reading it never scans the comments.
+ * Changes are summed on this instance and added to a random shard in one transaction at most
+ * once per flush interval, or sooner once enough have piled up, so most writes pay no
+ * transaction. Changes that fail to reach a shard stay pending and go out with the next flush;
+ * changes still pending when an instance shuts down are lost. Pending changes are included in
+ * this instance's count right away. The shard total is re-read at most once per interval.
+ */
+public final class CommentCounter {
+
+  private static final Logger LOGGER = Logger.getLogger(CommentCounter.class.getName());
+
+  private static final String SHARD_KIND = "CommentCounterShard";
+  private static final String COUNT_PROPERTY = "count";
+  private static final int NUM_SHARDS = 10;
+  private static final long READ_INTERVAL_MILLIS = 10 * 1000;
+  private static final long FLUSH_INTERVAL_MILLIS = 10 * 1000;
+  // Pending changes (in either direction) that trigger a flush before the interval is up.
+  private static final long MAX_PENDING = 50;
+  private static final int MAX_TRANSACTION_RETRIES = 3;
+
+  private static final CommentCounter INSTANCE = new CommentCounter();
+
+  // Changes on this instance that have not been added to a shard yet.
+  private final AtomicLong pending = new AtomicLong();
+  // Sum of the shards as of the last read, plus the changes this instance added since.
+  private final AtomicLong storedTotal = new AtomicLong();
+  // When add() next flushes pending changes, whatever their size.
+  private final AtomicLong nextFlushMillis = new AtomicLong();
+  // When the shards were last read, or 0 if never.
+  private volatile long storedReadMillis;
+  // Whether the shards are known to exist, i.e. the seed step is done.
+  private volatile boolean seeded;
+
+  private CommentCounter() {}
+
+  public static CommentCounter getInstance() {
+    return INSTANCE;
+  }
+
+  /** Records {@code delta} added (or, if negative, deleted) comments. Never throws. */
+  public void add(long delta) {
+    long total = pending.addAndGet(delta);
+    long now = System.currentTimeMillis();
+    long next = nextFlushMillis.get();
+    if ((now < next && Math.abs(total) < MAX_PENDING)
+        || !nextFlushMillis.compareAndSet(next, now + FLUSH_INTERVAL_MILLIS)) {
+      // Not due, or another caller is flushing right now.
+      return;
+    }
+    try {
+      if (!seeded && seedIfMissing()) {
+        // The seed counted the stored comments, which already include this change.
+        return;
+      }
+      flush();
+    } catch (RuntimeException e) {
+      // The change stays pending and goes out with the next call.
+      LOGGER.log(Level.WARNING, "could not update comment count, retrying later", e);
+    }
+  }
+
+  /** Returns the number of comments, including changes on this instance not yet flushed. */
+  public long getCount() {
+    long now = System.currentTimeMillis();
+    if (storedReadMillis == 0 || now - storedReadMillis > READ_INTERVAL_MILLIS) {
+      try {
+        flush();
+        storedTotal.set(readShards());
+        storedReadMillis = now;
+      } catch (RuntimeException e) {
+        if (storedReadMillis == 0) {
+          throw e;
+        }
+        LOGGER.log(Level.WARNING, "could not read comment count, using the last one", e);
+      }
+    }
+    return storedTotal.get() + pending.get();
+  }
+
+  /** Adds any pending changes to a shard right away; they stay pending if that fails. */
+  public void flush() {
+    long delta = pending.getAndSet(0);
+    if (delta == 0) {
+      return;
+    }
+    try {
+      addToShard(delta);
+      storedTotal.addAndGet(delta);
+    } catch (RuntimeException e) {
+      pending.addAndGet(delta);
+      throw e;
+    }
+  }
+
+  private void addToShard(long delta) {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    int shardId = ThreadLocalRandom.current().nextInt(NUM_SHARDS) + 1;
+    Key shardKey = KeyFactory.createKey(SHARD_KIND, shardId);
+    for (int attempt = 1; ; attempt++) {
+      Transaction transaction = datastore.beginTransaction();
+      try {
+        Entity shard;
+        try {
+          shard = datastore.get(transaction, shardKey);
+        } catch (EntityNotFoundException e) {
+          shard = new Entity(shardKey);
+          shard.setProperty(COUNT_PROPERTY, 0L);
+        }
+        shard.setUnindexedProperty(COUNT_PROPERTY, (long) shard.getProperty(COUNT_PROPERTY) + delta);
+        datastore.put(transaction, shard);
+        transaction.commit();
+        return;
+      } catch (ConcurrentModificationException e) {
+        if (attempt >= MAX_TRANSACTION_RETRIES) {
+          throw e;
+        }
+      } finally {
+        if (transaction.isActive()) {
+          transaction.rollback();
+        }
+      }
+    }
+  }
+
+  /** Sums all shards, seeding the counter from the existing comments the first time. */
+  private long readShards() {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Map<Key, Entity> shards = datastore.get(getShardKeys());
+    if (shards.isEmpty()) {
+      seedIfMissing();
+      shards = datastore.get(getShardKeys());
+    }
+    seeded = true;
+
+    long total = 0;
+    for (Entity shard : shards.values()) {
+      total += (long) shard.getProperty(COUNT_PROPERTY);
+    }
+    return total;
+  }
+
+  private static List<Key> getShardKeys() {
+    List<Key> keys = new ArrayList<>();
+    for (int i = 1; i <= NUM_SHARDS; i++) {
+      keys.add(KeyFactory.createKey(SHARD_KIND, i));
+    }
+    return keys;
+  }
+
+  /**
+   * Counts the comments stored before the counter existed, unless a shard exists already. This
+   * only does any work once per app. Returns true if this call stored the seed; changes pending
+   * on this instance are then taken to be part of the count, so they are dropped. The count comes
+   * from a query over all comments, which is only eventually consistent, so comments stored or
+   * deleted moments before the seed may be missed or counted twice.
+   */
+  private boolean seedIfMissing() {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    List<Key> keys = getShardKeys();
+    if (!datastore.get(keys).isEmpty()) {
+      seeded = true;
+      return false;
+    }
+
+    Query query = new Query(Comment.getEntityKind()).setKeysOnly();
+    long count = datastore.prepare(query).countEntities(FetchOptions.Builder.withDefaults());
+
+    Transaction transaction = datastore.beginTransaction();
+    try {
+      try {
+        // Another instance seeded it first.
+        datastore.get(transaction, keys.get(0));
+        seeded = true;
+        return false;
+      } catch (EntityNotFoundException e) {
+        Entity shard = new Entity(keys.get(0));
+        shard.setUnindexedProperty(COUNT_PROPERTY, count);
+        datastore.put(transaction, shard);
+        transaction.commit();
+        seeded = true;
+        pending.set(0);
+        return true;
+      }
+    } finally {
+      if (transaction.isActive()) {
+        transaction.rollback();
+      }
+    }
+  }
+}
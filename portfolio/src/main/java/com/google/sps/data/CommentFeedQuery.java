@@ -0,0 +1,74 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.DatastoreNeedIndexException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.PropertyProjection;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the newest-first comment feed query. When the {@code comments.projection} system property
+ * is set, only the properties the feed renders are fetched (backed by the composite index in
+ * datastore-indexes.xml); otherwise, or if that index is missing, full entities are loaded.
+ */
+public final class CommentFeedQuery {
+
+  private static final Logger LOGGER = Logger.getLogger(CommentFeedQuery.class.getName());
+
+  // Projection queries skip entities missing a projected property, so only turn this on once
+  // every Comment entity has a (possibly null) fileUrl.
+  private static volatile boolean useProjection = Boolean.getBoolean("comments.projection");
+
+  private CommentFeedQuery() {}
+
+  /** Returns the comments newest first, starting at the cursor in {@code options} if any. */
+  public static QueryResultIterator<Entity> run(FetchOptions options) {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    if (useProjection) {
+      try {
+        QueryResultIterator<Entity> results = 
+            datastore.prepare(newestFirst(/* projected= */ true)).asQueryResultIterator(options);
+        // Fetch the first batch now so a missing index shows up here rather than mid-response.
+        results.hasNext();
+        return results;
+      } catch (DatastoreNeedIndexException e) {
+        LOGGER.log(Level.WARNING, "comment projection index missing, loading full entities", e);
+        useProjection = false;
+      }
+    }
+    return datastore.prepare(newestFirst(/* projected= */ false)).asQueryResultIterator(options);
+  }
+
+  private static Query newestFirst(boolean projected) {
+    Query query = new Query(Comment.getEntityKind()).addSort("timestampMillis", SortDirection.DESCENDING);
+    if (projected) {
+      // The key, and with it the id, is always part of a projection result.
+      query.addProjection(new PropertyProjection("name", String.class));
+      query.addProjection(new PropertyProjection("timestampMillis", Long.class));
+      query.addProjection(new PropertyProjection("commentInput", String.class));
+      query.addProjection(new PropertyProjection("fileUrl", String.class));
+    }
+    return query;
+  }
+}
@@ -0,0 +1,257 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.function.IntConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores new comment entities in batches. A comment submitted while no other write is in flight
+ * is stored right away. Comments that arrive while a write is in flight queue up behind it, for at
+ * most {@code comments.write.maxDelayMillis} or until {@code comments.write.batchSize} are queued,
+ * and are then written with one {@code put(Iterable<Entity>)} call. A burst of submissions costs
+ * one Datastore round trip per batch instead of one per comment, and a lone submitter never
+ * waits. If a batch put fails, its comments are retried one at a time, so one bad comment only
+ * fails its own request.
+ *
+ * <p>{@code comments.write.durability} controls when the other requests return: {@code stored}
+ * (the default) waits until their comment is written, while {@code queued} returns as soon as
+ * the comment is in a batch and only logs a failed write.
+ */
+public final class CommentWriter {
+
+  private static final Logger LOGGER = Logger.getLogger(CommentWriter.class.getName());
+
+  private static final CommentWriter INSTANCE = new CommentWriter(
+      DatastoreServiceFactory.getAsyncDatastoreService(),
+      CommentWriter::onStored,
+      Integer.getInteger("comments.write.batchSize", 20),
+      Long.getLong("comments.write.maxDelayMillis", 50),
+      "queued".equals(System.getProperty("comments.write.durability", "stored")));
+
+  /** Comments written together by a single put call, each with the future its writer waits on. */
+  private static class Batch {
+    private final List<Entity> entities = new ArrayList<>();
+    private final List<SettableFuture<Void>> stored = new ArrayList<>();
+  }
+
+  private final int batchSize;
+  private final long maxDelayMillis;
+  private final boolean returnWhenQueued;
+  private final AsyncDatastoreService datastore;
+  // Told how many comments each flush stored.
+  private final IntConsumer storedListener;
+
+  // Guards the fields below.
+  private final Object lock = new Object();
+  // The batch new comments currently join.
+  private Batch open;
+  // Number of batches being written.
+  private int flushing;
+
+  CommentWriter(AsyncDatastoreService datastore, IntConsumer storedListener, int batchSize,
+      long maxDelayMillis, boolean returnWhenQueued) {
+    this.datastore = datastore;
+    this.storedListener = storedListener;
+    this.batchSize = batchSize;
+    this.maxDelayMillis = maxDelayMillis;
+    this.returnWhenQueued = returnWhenQueued;
+  }
+
+  public static CommentWriter getInstance() {
+    return INSTANCE;
+  }
+
+  /** Queues {@code entity} and returns once the configured durability level is reached. */
+  public void write(Entity entity) throws IOException {
+    Batch batch;
+    SettableFuture<Void> stored = SettableFuture.create();
+    boolean leader = false;
+    synchronized (lock) {
+      if (open == null) {
+        open = new Batch();
+        leader = true;
+      }
+      batch = open;
+      batch.entities.add(entity);
+      batch.stored.add(stored);
+      if (batch.entities.size() >= batchSize) {
+        // Close the batch and wake its leader early.
+        open = null;
+        lock.notifyAll();
+      }
+    }
+
+    if (leader) {
+      waitForTurn(batch);
+      try {
+        flush(batch);
+      } finally {
+        synchronized (lock) {
+          flushing--;
+          lock.notifyAll();
+        }
+      }
+    } else if (returnWhenQueued) {
+      return;
+    }
+
+    try {
+      stored.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted while storing comment", e);
+    } catch (ExecutionException e) {
+      throw new IOException("failed to store comment", e.getCause());
+    }
+  }
+
+  /**
+   * Waits while other batches are being written, so comments arriving meanwhile can join this
+   * one, then closes the batch and counts it as flushing.
+   */
+  private void waitForTurn(Batch batch) {
+    synchronized (lock) {
+      long deadline = System.currentTimeMillis() + maxDelayMillis;
+      long remaining = maxDelayMillis;
+      while (flushing > 0 && open == batch && remaining > 0) {
+        try {
+          lock.wait(remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+        remaining = deadline - System.currentTimeMillis();
+      }
+      if (open == batch) {
+        open = null;
+      }
+      flushing++;
+    }
+  }
+
+  private void flush(Batch batch) {
+    // No more entities can join once the batch is closed, so it is safe to read without the lock.
+    int storedCount = 0;
+    try {
+      try {
+        if (batch.entities.size() > 1) {
+          allocateKeys(batch.entities);
+        }
+        datastore.put(batch.entities).get();
+        storedCount = batch.entities.size();
+        for (SettableFuture<Void> stored : batch.stored) {
+          stored.set(null);
+        }
+      } catch (ExecutionException | RuntimeException e) {
+        if (batch.entities.size() == 1) {
+          throw e;
+        }
+        // A rejected entity, e.g. an overlong comment, fails the whole put; isolate it.
+        LOGGER.log(Level.WARNING, "failed to store " + batch.entities.size()
+            + " comments together, retrying one at a time", e);
+        for (int i = 0; i < batch.entities.size(); i++) {
+          if (storeOne(batch.entities.get(i), batch.stored.get(i))) {
+            storedCount++;
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      setAllFailed(batch, e);
+    } catch (ExecutionException e) {
+      LOGGER.log(Level.SEVERE, "failed to store comment", e.getCause());
+      setAllFailed(batch, e.getCause());
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.SEVERE, "failed to store comment", e);
+      setAllFailed(batch, e);
+    } finally {
+      // Whatever happened above, nobody may be left waiting; this is a no-op for set futures.
+      setAllFailed(batch, new IOException("comment was not stored"));
+    }
+
+    if (storedCount == 0) {
+      return;
+    }
+    // The comments are stored; keeping the cache and count in sync must not fail the writes.
+    try {
+      storedListener.accept(storedCount);
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.WARNING, "failed to update comment cache or count", e);
+    }
+  }
+
+  private static void onStored(int count) {
+    CommentCache.getInstance().invalidate();
+    CommentCounter.getInstance().add(count);
+  }
+
+  /**
+   * Replaces the entities that have no id yet with copies under keys from one allocateIds call.
+   * A batch put can fail after storing some or all of its entities, e.g. on a timeout; with
+   * complete keys, retrying them one at a time overwrites those instead of storing them twice.
+   */
+  private void allocateKeys(List<Entity> entities) throws InterruptedException, ExecutionException {
+    List<Integer> incomplete = new ArrayList<>();
+    for (int i = 0; i < entities.size(); i++) {
+      if (!entities.get(i).getKey().isComplete()) {
+        incomplete.add(i);
+      }
+    }
+    if (incomplete.isEmpty()) {
+      return;
+    }
+    Iterator<Key> keys =
+        datastore.allocateIds(Comment.getEntityKind(), incomplete.size()).get().iterator();
+    for (int i : incomplete) {
+      Entity entity = new Entity(keys.next());
+      entity.setPropertiesFrom(entities.get(i));
+      entities.set(i, entity);
+    }
+  }
+
+  /** Stores a single entity, completing {@code stored} either way. Returns true on success. */
+  private boolean storeOne(Entity entity, SettableFuture<Void> stored)
+      throws InterruptedException {
+    try {
+      datastore.put(entity).get();
+      stored.set(null);
+      return true;
+    } catch (ExecutionException e) {
+      stored.setException(e.getCause());
+    } catch (RuntimeException e) {
+      stored.setException(e);
+    }
+    return false;
+  }
+
+  private static void setAllFailed(Batch batch, Throwable cause) {
+    for (SettableFuture<Void> stored : batch.stored) {
+      stored.setException(cause);
+    }
+  }
+}
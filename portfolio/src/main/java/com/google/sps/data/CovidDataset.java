@@ -0,0 +1,604 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.sps.data;
+
+import com.google.common.io.ByteStreams;
+import com.google.sps.data.CovidSeries.Metric;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * COVID-19 case counts for every country, stored column-wise: the rows of all countries share
+ * three primitive arrays, grouped by country and sorted by date within each country. Country
+ * codes are dictionary-encoded and sorted, so finding a country's rows is a binary search.
+ *
+ * <p>Reads either an OWID export with a header row (using its {@code iso_code}, {@code date},
+ * {@code total_cases} and {@code new_cases} columns) or the headerless single-series layout
+ * {@code yyyy-MM-dd,totalCases,newCases,...}, which is stored as {@link #WORLD}. Rows are parsed
+ * straight from the CSV bytes without building strings, and large files are parsed in parallel.
+ */
+public final class CovidDataset {
+
+  /** OWID's code for the worldwide totals, served when no country is asked for. */
+  public static final String WORLD = "OWID_WRL";
+
+  private static final Logger LOGGER = Logger.getLogger(CovidDataset.class.getName());
+
+  // Bytes read from the stream at a time; each such chunk is parsed on its own thread.
+  private static final int CHUNK_BYTES = 1 << 20;
+  // Chunks read but not yet parsed; reading waits for parsing beyond this.
+  private static final int MAX_CHUNKS_IN_FLIGHT = Runtime.getRuntime().availableProcessors() * 2;
+
+  // Sorted country codes; the rows of countries[i] are [offsets[i], offsets[i + 1]).
+  private final String[] countries;
+  private final int[] offsets;
+  private final int[] epochDay;
+  private final int[] totalCases;
+  private final int[] newCases;
+  // Derived metrics, computed once at load time; see CovidSeries.Metric.
+  private final float[][] derived;
+
+  private CovidDataset(String[] countries, int[] offsets, int[] epochDay, int[] totalCases,
+                       int[] newCases) {
+    this.countries = countries;
+    this.offsets = offsets;
+    this.epochDay = epochDay;
+    this.totalCases = totalCases;
+    this.newCases = newCases;
+    this.derived = new float[Metric.values().length - Metric.FIRST_DERIVED][epochDay.length];
+    for (int i = 0; i < countries.length; i++) {
+      derive(offsets[i], offsets[i + 1]);
+    }
+  }
+
+  /** Returns the number of rows over all countries. */
+  public int getRowCount() {
+    return epochDay.length;
+  }
+
+  /** Returns the sorted codes of all countries with data. */
+  public List<String> getCountryCodes() {
+    return Collections.unmodifiableList(Arrays.asList(countries));
+  }
+
+  /** Returns the series of one country, or null if there is no data for it. */
+  public CovidSeries getSeries(String countryCode) {
+    int index = Arrays.binarySearch(countries, countryCode);
+    if (index < 0) {
+      return null;
+    }
+    return new CovidSeries(epochDay, totalCases, newCases, derived, offsets[index],
+                           offsets[index + 1]);
+  }
+
+  /** Returns the worldwide series, or the only series if the data has just one country. */
+  public CovidSeries getDefaultSeries() {
+    CovidSeries world = getSeries(WORLD);
+    if (world != null) {
+      return world;
+    }
+    int end = countries.length == 1 ? offsets[1] : 0;
+    return new CovidSeries(epochDay, totalCases, newCases, derived, 0, end);
+  }
+
+  /**
+   * Computes the derived metrics of one country's rows [start, end) in a single pass, using a
+   * prefix sum of newCases and two pointers to the start of the 7- and 14-day windows so that
+   * gaps in the dates are handled. Averages are over the rows present in the window.
+   */
+  private void derive(int start, int end) {
+    float[] average7 = derived[Metric.NEW_CASES_7_DAY_AVERAGE.ordinal() - Metric.FIRST_DERIVED];
+    float[] average14 = derived[Metric.NEW_CASES_14_DAY_AVERAGE.ordinal() - Metric.FIRST_DERIVED];
+    float[] doublingDays = derived[Metric.DOUBLING_DAYS.ordinal() - Metric.FIRST_DERIVED];
+    float[] weekOverWeek = derived[Metric.WEEK_OVER_WEEK_CHANGE.ordinal() - Metric.FIRST_DERIVED];
+
+    // prefix[i - start] is the sum of newCases over [start, i).
+    long[] prefix = new long[end - start + 1];
+    for (int i = start; i < end; i++) {
+      prefix[i - start + 1] = prefix[i - start] + newCases[i];
+    }
+
+    // First rows inside the last 7 and 14 days.
+    int window7 = start;
+    int window14 = start;
+    for (int i = start; i < end; i++) {
+      int day = epochDay[i];
+      while (epochDay[window7] <= day - 7) {
+        window7++;
+      }
+      while (epochDay[window14] <= day - 14) {
+        window14++;
+      }
+      int history = day - epochDay[start];
+      long sum7 = prefix[i + 1 - start] - prefix[window7 - start];
+      long sum14 = prefix[i + 1 - start] - prefix[window14 - start];
+      long previous7 = sum14 - sum7;
+
+      average7[i] = history >= 6 ? (float) sum7 / (i + 1 - window7) : Float.NaN;
+      average14[i] = history >= 13 ? (float) sum14 / (i + 1 - window14) : Float.NaN;
+      weekOverWeek[i] = history >= 13 && previous7 > 0
+          ? (float) (sum7 - previous7) / previous7 : Float.NaN;
+
+      // Compare with the last row at least a week old.
+      doublingDays[i] = Float.NaN;
+      if (window7 > start) {
+        int before = window7 - 1;
+        int total = totalCases[i];
+        int totalBefore = totalCases[before];
+        if (totalBefore > 0 && total > totalBefore) {
+          doublingDays[i] = (float) ((day - epochDay[before]) * Math.log(2)
+              / Math.log((double) total / totalBefore));
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads and parses a CSV stream, skipping (and logging the number of) invalid rows. The stream
+   * is read in line-aligned chunks that are parsed in parallel while the next ones are read, so
+   * only a few chunks of the file are in memory at once rather than the whole file.
+   */
+  public static CovidDataset load(InputStream in) throws IOException {
+    AtomicInteger skipped = new AtomicInteger();
+    List<CompletableFuture<Chunk>> parsing = new ArrayList<>();
+    List<Chunk> parsed = new ArrayList<>();
+    Layout layout = null;
+    // The start of a line cut off at the end of the previous read.
+    byte[] carry = new byte[0];
+    boolean done = false;
+    while (!done) {
+      byte[] bytes = Arrays.copyOf(carry, carry.length + CHUNK_BYTES);
+      int length = carry.length + ByteStreams.read(in, bytes, carry.length, CHUNK_BYTES);
+      done = length < bytes.length;
+      int end = done ? length : lastLineEnd(bytes, length) + 1;
+      carry = Arrays.copyOfRange(bytes, end, length);
+      if (end == 0) {
+        // No complete line yet; read on.
+        continue;
+      }
+
+      int start = 0;
+      if (layout == null) {
+        layout = Layout.detect(bytes, end);
+        start = layout.hasHeader ? lineEnd(bytes, 0, end) + 1 : 0;
+      }
+      Layout chunkLayout = layout;
+      int chunkStart = start;
+      if (done && parsing.isEmpty()) {
+        // The whole file fit in one chunk; parsing it here saves a thread hand-off.
+        parsed.add(new Chunk(bytes, chunkLayout, chunkStart, end, skipped));
+        break;
+      }
+      parsing.add(CompletableFuture.supplyAsync(
+          () -> new Chunk(bytes, chunkLayout, chunkStart, end, skipped)));
+      if (parsing.size() - parsed.size() > MAX_CHUNKS_IN_FLIGHT) {
+        parsed.add(join(parsing.get(parsed.size())));
+      }
+    }
+    while (parsed.size() < parsing.size()) {
+      parsed.add(join(parsing.get(parsed.size())));
+    }
+    if (layout == null) {
+      // An empty file still has an (empty) worldwide series.
+      parsed.add(new Chunk(carry, Layout.detect(carry, 0), 0, 0, skipped));
+    }
+
+    if (skipped.get() > 0) {
+      LOGGER.log(Level.WARNING, "skipped " + skipped.get() + " invalid COVID-19 rows");
+    }
+    return merge(parsed);
+  }
+
+  /** Parses CSV bytes, skipping (and logging the number of) invalid rows. */
+  public static CovidDataset parse(byte[] csv) {
+    try {
+      return load(new ByteArrayInputStream(csv));
+    } catch (IOException e) {
+      throw new UncheckedIOException("reading from memory never fails", e);
+    }
+  }
+
+  private static Chunk join(CompletableFuture<Chunk> chunk) {
+    try {
+      return chunk.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Combines the chunks into shared columns grouped by country, using a counting sort on the
+   * country so rows of one country keep their file order.
+   */
+  private static CovidDataset merge(List<Chunk> chunks) {
+    TreeSet<String> codes = new TreeSet<>();
+    int rows = 0;
+    for (Chunk chunk : chunks) {
+      codes.addAll(chunk.codes);
+      rows += chunk.rows;
+    }
+    String[] countries = codes.toArray(new String[0]);
+
+    int[] counts = new int[countries.length + 1];
+    List<int[]> ranks = new ArrayList<>();
+    for (Chunk chunk : chunks) {
+      int[] rank = new int[chunk.codes.size()];
+      for (int id = 0; id < rank.length; id++) {
+        rank[id] = Arrays.binarySearch(countries, chunk.codes.get(id));
+      }
+      ranks.add(rank);
+      for (int row = 0; row < chunk.rows; row++) {
+        counts[rank[chunk.country[row]] + 1]++;
+      }
+    }
+    int[] next = new int[countries.length];
+    for (int i = 1; i <= countries.length; i++) {
+      counts[i] += counts[i - 1];
+      next[i - 1] = counts[i - 1];
+    }
+
+    int[] epochDay = new int[rows];
+    int[] totalCases = new int[rows];
+    int[] newCases = new int[rows];
+    for (int c = 0; c < chunks.size(); c++) {
+      Chunk chunk = chunks.get(c);
+      int[] rank = ranks.get(c);
+      for (int row = 0; row < chunk.rows; row++) {
+        int position = next[rank[chunk.country[row]]]++;
+        epochDay[position] = chunk.epochDay[row];
+        totalCases[position] = chunk.totalCases[row];
+        newCases[position] = chunk.newCases[row];
+      }
+    }
+
+    // Sort each country's rows by date where needed, keeping the last row for a repeated date.
+    int[] offsets = new int[countries.length + 1];
+    int size = 0;
+    for (int i = 0; i < countries.length; i++) {
+      offsets[i] = size;
+      size = sortByDate(epochDay, totalCases, newCases, counts[i], counts[i + 1], size);
+    }
+    offsets[countries.length] = size;
+    return new CovidDataset(countries, offsets, Arrays.copyOf(epochDay, size),
+                            Arrays.copyOf(totalCases, size), Arrays.copyOf(newCases, size));
+  }
+
+  /**
+   * Sorts rows [start, end) by date and moves them to start at {@code to} (which is never after
+   * {@code start}). Returns the end of the moved rows.
+   */
+  private static int sortByDate(int[] epochDay, int[] totalCases, int[] newCases, int start,
+                                int end, int to) {
+    boolean sorted = true;
+    for (int i = start + 1; i < end && sorted; i++) {
+      sorted = epochDay[i - 1] < epochDay[i];
+    }
+    if (sorted) {
+      System.arraycopy(epochDay, start, epochDay, to, end - start);
+      System.arraycopy(totalCases, start, totalCases, to, end - start);
+      System.arraycopy(newCases, start, newCases, to, end - start);
+      return to + end - start;
+    }
+
+    // Sort (day, row) pairs packed into longs so no boxing is needed; equal days keep file order.
+    long[] order = new long[end - start];
+    for (int i = start; i < end; i++) {
+      order[i - start] = ((long) epochDay[i] << 32) | (i - start);
+    }
+    Arrays.sort(order);
+    int[] day = Arrays.copyOfRange(epochDay, start, end);
+    int[] total = Arrays.copyOfRange(totalCases, start, end);
+    int[] added = Arrays.copyOfRange(newCases, start, end);
+    int size = to;
+    for (long entry : order) {
+      int row = (int) entry;
+      if (size > to && epochDay[size - 1] == day[row]) {
+        size--;
+      }
+      epochDay[size] = day[row];
+      totalCases[size] = total[row];
+      newCases[size] = added[row];
+      size++;
+    }
+    return size;
+  }
+
+  private static int lineEnd(byte[] csv, int start, int limit) {
+    int end = start;
+    while (end < limit && csv[end] != '\n') {
+      end++;
+    }
+    return end;
+  }
+
+  /** Returns the index of the last newline in the first {@code length} bytes, or -1. */
+  private static int lastLineEnd(byte[] csv, int length) {
+    int end = length - 1;
+    while (end >= 0 && csv[end] != '\n') {
+      end--;
+    }
+    return end;
+  }
+
+  /** Which columns hold the fields we need. */
+  private static class Layout {
+    private final boolean hasHeader;
+    // -1 if every row belongs to {@link #WORLD}.
+    private final int countryColumn;
+    private final int dateColumn;
+    private final int totalColumn;
+    private final int newColumn;
+    private final int lastColumn;
+
+    private Layout(boolean hasHeader, int countryColumn, int dateColumn, int totalColumn,
+                   int newColumn) {
+      this.hasHeader = hasHeader;
+      this.countryColumn = countryColumn;
+      this.dateColumn = dateColumn;
+      this.totalColumn = totalColumn;
+      this.newColumn = newColumn;
+      this.lastColumn =
+          Math.max(Math.max(countryColumn, dateColumn), Math.max(totalColumn, newColumn));
+    }
+
+    /**
+     * Reads the header row, if there is one, from the first {@code length} bytes; a file
+     * starting with a digit has none.
+     */
+    private static Layout detect(byte[] csv, int length) {
+      if (length == 0 || (csv[0] >= '0' && csv[0] <= '9')) {
+        return new Layout(/* hasHeader= */ false, -1, 0, 1, 2);
+      }
+
+      String header = new String(csv, 0, lineEnd(csv, 0, length), StandardCharsets.UTF_8).trim();
+      List<String> names = Arrays.asList(header.split(","));
+      int dateColumn = names.indexOf("date");
+      int totalColumn = names.indexOf("total_cases");
+      int newColumn = names.indexOf("new_cases");
+      if (dateColumn < 0 || totalColumn < 0 || newColumn < 0) {
+        throw new IllegalArgumentException(
+            "COVID-19 data needs date, total_cases and new_cases columns, got: " + header);
+      }
+      return new Layout(/* hasHeader= */ true, names.indexOf("iso_code"), dateColumn, totalColumn,
+                        newColumn);
+    }
+  }
+
+  /** Rows parsed from one line-aligned slice of the file. */
+  private static class Chunk {
+    // Country codes seen in this chunk, indexed by the ids stored in {@code country}.
+    private final List<String> codes = new ArrayList<>();
+    private final Map<String, Integer> ids = new HashMap<>();
+
+    private int[] country;
+    private int[] epochDay;
+    private int[] totalCases;
+    private int[] newCases;
+    private int rows;
+
+    // The bytes being parsed; dropped once parsing is done so the chunk only keeps its columns.
+    private byte[] csv;
+    private final Layout layout;
+    // Start and end of each needed field of the current row.
+    private final int[] fieldStart;
+    private final int[] fieldEnd;
+    // Bytes of the previous row's country code, to skip the lookup when it repeats.
+    private int lastCodeStart = -1;
+    private int lastCodeEnd = -1;
+    private int lastId = -1;
+
+    private Chunk(byte[] csv, Layout layout, int start, int end, AtomicInteger skipped) {
+      this.csv = csv;
+      this.layout = layout;
+      this.fieldStart = new int[layout.lastColumn + 1];
+      this.fieldEnd = new int[layout.lastColumn + 1];
+      // A first guess at the row count; OWID rows are longer than 32 bytes, and the columns grow
+      // if a file has shorter ones.
+      int capacity = Math.max(16, (end - start) / 32);
+      country = new int[capacity];
+      epochDay = new int[capacity];
+      totalCases = new int[capacity];
+      newCases = new int[capacity];
+      if (layout.countryColumn < 0) {
+        codes.add(WORLD);
+        lastId = 0;
+      }
+
+      int position = start;
+      while (position < end) {
+        int lineEnd = position;
+        while (lineEnd < end && csv[lineEnd] != '\n') {
+          lineEnd++;
+        }
+        if (!parseRow(position, lineEnd) && lineEnd > position) {
+          skipped.incrementAndGet();
+        }
+        position = lineEnd + 1;
+      }
+      this.csv = null;
+    }
+
+    /** Parses the row from {@code start} to {@code lineEnd}; returns false if it is invalid. */
+    private boolean parseRow(int start, int lineEnd) {
+      if (lineEnd > start && csv[lineEnd - 1] == '\r') {
+        lineEnd--;
+      }
+      if (!splitFields(start, lineEnd)) {
+        return false;
+      }
+      int day = parseDate(fieldStart[layout.dateColumn], fieldEnd[layout.dateColumn]);
+      int total = parseCount(fieldStart[layout.totalColumn], fieldEnd[layout.totalColumn]);
+      int added = parseCount(fieldStart[layout.newColumn], fieldEnd[layout.newColumn]);
+      if (day == Integer.MIN_VALUE || total < 0 || added < 0) {
+        return false;
+      }
+      int id = lastId;
+      if (layout.countryColumn >= 0) {
+        id = countryId(fieldStart[layout.countryColumn], fieldEnd[layout.countryColumn]);
+        if (id < 0) {
+          return false;
+        }
+      }
+
+      if (rows == epochDay.length) {
+        country = Arrays.copyOf(country, rows * 2);
+        epochDay = Arrays.copyOf(epochDay, rows * 2);
+        totalCases = Arrays.copyOf(totalCases, rows * 2);
+        newCases = Arrays.copyOf(newCases, rows * 2);
+      }
+      country[rows] = id;
+      epochDay[rows] = day;
+      totalCases[rows] = total;
+      newCases[rows] = added;
+      rows++;
+      return true;
+    }
+
+    /** Finds the needed fields of a row, skipping commas inside quotes. */
+    private boolean splitFields(int start, int lineEnd) {
+      int position = start;
+      for (int column = 0; column <= layout.lastColumn; column++) {
+        if (position > lineEnd) {
+          return false;
+        }
+        fieldStart[column] = position;
+        boolean quoted = false;
+        while (position < lineEnd && (quoted || csv[position] != ',')) {
+          if (csv[position] == '"') {
+            quoted = !quoted;
+          }
+          position++;
+        }
+        fieldEnd[column] = position;
+        position++;
+      }
+      return true;
+    }
+
+    /** Returns the id of the country code in [start, end), or -1 if the field is empty. */
+    private int countryId(int start, int end) {
+      if (start >= end) {
+        return -1;
+      }
+      if (end - start == lastCodeEnd - lastCodeStart) {
+        boolean same = true;
+        for (int i = 0; i < end - start && same; i++) {
+          same = csv[start + i] == csv[lastCodeStart + i];
+        }
+        if (same) {
+          return lastId;
+        }
+      }
+
+      String code = new String(csv, start, end - start, StandardCharsets.UTF_8);
+      Integer id = ids.get(code);
+      if (id == null) {
+        id = codes.size();
+        codes.add(code);
+        ids.put(code, id);
+      }
+      lastCodeStart = start;
+      lastCodeEnd = end;
+      lastId = id;
+      return id;
+    }
+
+    /**
+     * Parses a non-negative count, ignoring a fractional part such as the ".0" in newer OWID
+     * exports. Returns -1 if the field is empty, negative or not a number.
+     */
+    private int parseCount(int start, int end) {
+      long value = 0;
+      int i = start;
+      for (; i < end && csv[i] != '.'; i++) {
+        int digit = csv[i] - '0';
+        if (digit < 0 || digit > 9) {
+          return -1;
+        }
+        value = value * 10 + digit;
+        if (value > Integer.MAX_VALUE) {
+          return -1;
+        }
+      }
+      return i == start ? -1 : (int) value;
+    }
+
+    /**
+     * Parses a {@code yyyy-MM-dd} field into days since 1970-01-01, or returns
+     * {@code Integer.MIN_VALUE} if it is not a valid date.
+     */
+    private int parseDate(int start, int end) {
+      if (end - start != 10 || csv[start + 4] != '-' || csv[start + 7] != '-') {
+        return Integer.MIN_VALUE;
+      }
+      int year = digits(start, 4);
+      int month = digits(start + 5, 2);
+      int day = digits(start + 8, 2);
+      if (year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)) {
+        return Integer.MIN_VALUE;
+      }
+      return toEpochDay(year, month, day);
+    }
+
+    private int digits(int start, int count) {
+      int value = 0;
+      for (int i = start; i < start + count; i++) {
+        int digit = csv[i] - '0';
+        if (digit < 0 || digit > 9) {
+          return -1;
+        }
+        value = value * 10 + digit;
+      }
+      return value;
+    }
+  }
+
+  private static int daysInMonth(int year, int month) {
+    if (month == 2) {
+      boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+      return leap ? 29 : 28;
+    }
+    return (month == 4 || month == 6 || month == 9 || month == 11) ? 30 : 31;
+  }
+
+  /** Days since 1970-01-01 for a proleptic Gregorian date (Howard Hinnant's days_from_civil). */
+  private static int toEpochDay(int year, int month, int day) {
+    int y = month <= 2 ? year - 1 : year;
+    int era = (y >= 0 ? y : y - 399) / 400;
+    int yearOfEra = y - era * 400;
+    int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+    int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097 + dayOfEra - 719468;
+  }
+}
@@ -0,0 +1,201 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.sps.data;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+
+/**
+ * COVID-19 case counts of one country by day, sorted by date. A series is a view of a range of
+ * the primitive columns shared by a whole {@link CovidDataset}, so looking one up copies nothing.
+ */
+public final class CovidSeries {
+
+  /** Length of the buckets rows are grouped into by {@link #slice}. */
+  public enum Resolution { DAY, WEEK, MONTH }
+
+  /** How the rows that fall into one bucket are combined. */
+  public enum Aggregation { MAX, SUM }
+
+  /** 
+   * A value available for every row. The raw counts come from the data file; the others are
+   * derived from them when the data is loaded and are undefined (NaN) until there is enough
+   * history, e.g. for the first six days of a 7-day average.
+   */
+  public enum Metric {
+    TOTAL_CASES("totalCases"),
+    NEW_CASES("newCases"),
+    // Mean of newCases over the last 7 and 14 days.
+    NEW_CASES_7_DAY_AVERAGE("newCases7DayAverage"),
+    NEW_CASES_14_DAY_AVERAGE("newCases14DayAverage"),
+    // Days totalCases would take to double at the growth rate of the last 7 days.
+    DOUBLING_DAYS("doublingDays"),
+    // Change of the last 7 days' newCases over the 7 days before, e.g. 0.25 for 25% more.
+    WEEK_OVER_WEEK_CHANGE("weekOverWeekChange");
+
+    // Derived metrics are stored after the two raw counts.
+    static final int FIRST_DERIVED = 2;
+
+    private final String name;
+
+    Metric(String name) {
+      this.name = name;
+    }
+
+    /** Returns the JSON name of the metric. */
+    public String getName() {
+      return name;
+    }
+
+    /** Returns the metric with the given JSON name, or null if there is none. */
+    public static Metric forName(String name) {
+      for (Metric metric : values()) {
+        if (metric.name.equals(name)) {
+          return metric;
+        }
+      }
+      return null;
+    }
+  }
+
+  private final int[] epochDay;
+  private final int[] totalCases;
+  private final int[] newCases;
+  // Columns of the derived metrics, in Metric order starting at FIRST_DERIVED.
+  private final float[][] derived;
+  // The rows of this series are [start, end) of the columns.
+  private final int start;
+  private final int end;
+
+  CovidSeries(int[] epochDay, int[] totalCases, int[] newCases, float[][] derived, int start, 
+              int end) {
+    this.epochDay = epochDay;
+    this.totalCases = totalCases;
+    this.newCases = newCases;
+    this.derived = derived;
+    this.start = start;
+    this.end = end;
+  }
+
+  private CovidSeries(int[] epochDay, int[] totalCases, int[] newCases, float[][] derived) {
+    this(epochDay, totalCases, newCases, derived, 0, epochDay.length);
+  }
+
+  public int size() {
+    return end - start;
+  }
+
+  /** Returns the date of row {@code i} as days since 1970-01-01. */
+  public int getEpochDay(int i) {
+    return epochDay[start + i];
+  }
+
+  public int getTotalCases(int i) {
+    return totalCases[start + i];
+  }
+
+  public int getNewCases(int i) {
+    return newCases[start + i];
+  }
+
+  /** Returns {@code metric} for row {@code i}, or NaN if it is not defined for that row. */
+  public double getValue(Metric metric, int i) {
+    switch (metric) {
+      case TOTAL_CASES:
+        return totalCases[start + i];
+      case NEW_CASES:
+        return newCases[start + i];
+      default:
+        return derived[metric.ordinal() - Metric.FIRST_DERIVED][start + i];
+    }
+  }
+
+  /** Returns the index of the first row on or after {@code day}, or {@code size()} if none. */
+  public int lowerBound(int day) {
+    int low = start;
+    int high = end;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (epochDay[mid] < day) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low - start;
+  }
+
+  /**
+   * Returns the rows from {@code fromDay} to {@code toDay} (both inclusive), grouped into buckets
+   * of the given resolution. Each bucket is dated by its first day (Monday for weeks) and combines
+   * its raw counts with the given aggregations; derived metrics take their value on the bucket's
+   * last day. Only the rows inside the range are visited.
+   */
+  public CovidSeries slice(int fromDay, int toDay, Resolution resolution, 
+                           Aggregation totalAggregation, Aggregation newAggregation) {
+    int first = start + lowerBound(fromDay);
+    int last = toDay == Integer.MAX_VALUE ? end : start + lowerBound(toDay + 1);
+    if (resolution == Resolution.DAY || first >= last) {
+      return new CovidSeries(epochDay, totalCases, newCases, derived, first, Math.max(first, last));
+    }
+
+    int[] bucketDay = new int[last - first];
+    int[] bucketTotal = new int[last - first];
+    int[] bucketNew = new int[last - first];
+    float[][] bucketDerived = new float[derived.length][last - first];
+    int buckets = 0;
+    for (int i = first; i < last; i++) {
+      int day = bucketStart(epochDay[i], resolution);
+      if (buckets == 0 || bucketDay[buckets - 1] != day) {
+        bucketDay[buckets] = day;
+        bucketTotal[buckets] = totalCases[i];
+        bucketNew[buckets] = newCases[i];
+        buckets++;
+      } else {
+        bucketTotal[buckets - 1] = combine(bucketTotal[buckets - 1], totalCases[i], totalAggregation);
+        bucketNew[buckets - 1] = combine(bucketNew[buckets - 1], newCases[i], newAggregation);
+      }
+      for (int m = 0; m < derived.length; m++) {
+        bucketDerived[m][buckets - 1] = derived[m][i];
+      }
+    }
+    for (int m = 0; m < derived.length; m++) {
+      bucketDerived[m] = Arrays.copyOf(bucketDerived[m], buckets);
+    }
+    return new CovidSeries(Arrays.copyOf(bucketDay, buckets), Arrays.copyOf(bucketTotal, buckets), 
+                           Arrays.copyOf(bucketNew, buckets), bucketDerived);
+  }
+
+  private static int bucketStart(int day, Resolution resolution) {
+    switch (resolution) {
+      case WEEK:
+        // 1970-01-01 was a Thursday, so shift by three days to land on Monday.
+        return day - Math.floorMod(day + 3, 7);
+      case MONTH:
+        return day - LocalDate.ofEpochDay(day).getDayOfMonth() + 1;
+      default:
+        return day;
+    }
+  }
+
+  private static int combine(int a, int b, Aggregation aggregation) {
+    if (aggregation == Aggregation.MAX) {
+      return Math.max(a, b);
+    }
+    long sum = (long) a + b;
+    return sum > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) sum;
+  }
+}
@@ -0,0 +1,196 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.ToLongFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds a dataset parsed from a file that may be refreshed while the app runs. A cron request calls
+ * {@link #checkSource} to check the source (a file: or http(s): URL); if it changed, the new
+ * version is parsed and swapped in atomically, and a version number shared in the Datastore is
+ * bumped. Every instance compares that number with the version it has at most once per check
+ * interval, and the request that finds it behind reloads; all other readers get the current
+ * version without waiting, so a refresh never causes a cold-start spike. A new version that is
+ * empty or much smaller than the current one is taken to be a truncated download and ignored.
+ */
+public final class DatasetReloader<T> {
+
+  /** Builds the dataset, including anything precomputed from it, from the source contents. */
+  public interface Parser<T> {
+    T parse(InputStream in) throws IOException;
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(DatasetReloader.class.getName());
+
+  private static final String VERSION_KIND = "DatasetVersion";
+  private static final String VERSION_PROPERTY = "version";
+  // A new version smaller than this share of the current one is rejected.
+  private static final double MIN_SIZE_RATIO = 0.5;
+
+  private final Key versionKey;
+  private final URL source;
+  private final long checkIntervalMillis;
+  private final Parser<T> parser;
+  private final ToLongFunction<T> sizeOf;
+  private final AtomicBoolean checking = new AtomicBoolean();
+
+  private volatile T current;
+  private volatile long nextCheckMillis;
+  // Guarded by this; only touched while loading.
+  private long lastModified;
+  private long loadedVersion;
+
+  /** 
+   * @param name Identifies the dataset's shared version number.
+   * @param initial The version to serve until the source has been read, e.g. from a bundled file.
+   * @param source Where refreshed versions come from, or null to never reload.
+   * @param sizeOf Measures a version, e.g. by its rows, to spot truncated downloads.
+   */
+  public DatasetReloader(String name, T initial, URL source, long checkIntervalMillis,
+      Parser<T> parser, ToLongFunction<T> sizeOf) {
+    this.versionKey = KeyFactory.createKey(VERSION_KIND, name);
+    this.current = initial;
+    this.source = source;
+    this.checkIntervalMillis = checkIntervalMillis;
+    this.parser = parser;
+    this.sizeOf = sizeOf;
+  }
+
+  /** 
+   * Returns the current version. If another instance loaded a newer one, the one caller that
+   * notices first loads it too before returning.
+   */
+  public T get() {
+    long now = System.currentTimeMillis();
+    if (source != null && now >= nextCheckMillis && checking.compareAndSet(false, true)) {
+      try {
+        nextCheckMillis = now + checkIntervalMillis;
+        catchUp();
+      } catch (IOException | RuntimeException e) {
+        LOGGER.log(Level.WARNING, "could not reload dataset from " + source, e);
+      } finally {
+        checking.set(false);
+      }
+    }
+    return current;
+  }
+
+  /** Reads the source, e.g. at startup. Does nothing if there is no source. */
+  public synchronized void load() throws IOException {
+    if (source == null) {
+      return;
+    }
+    long version = readVersion();
+    reloadIfChanged();
+    loadedVersion = version;
+  }
+
+  /** 
+   * Reloads the source if it changed since this instance last read it, and if so tells the other
+   * instances to reload too. Does nothing if there is no source.
+   */
+  public synchronized void checkSource() throws IOException {
+    if (source != null && reloadIfChanged()) {
+      loadedVersion = publishVersion();
+    }
+  }
+
+  private synchronized void catchUp() throws IOException {
+    long version = readVersion();
+    if (version > loadedVersion) {
+      reloadIfChanged();
+      loadedVersion = version;
+    }
+  }
+
+  /** Swaps in the source's contents if they changed since the last reload; returns whether. */
+  private boolean reloadIfChanged() throws IOException {
+    URLConnection connection = source.openConnection();
+    connection.setIfModifiedSince(lastModified);
+    if (connection instanceof HttpURLConnection) {
+      int status = ((HttpURLConnection) connection).getResponseCode();
+      if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+        return false;
+      }
+    }
+
+    long modified = connection.getLastModified();
+    try (InputStream in = connection.getInputStream()) {
+      if (modified != 0 && modified == lastModified) {
+        return false;
+      }
+      T next = parser.parse(in);
+      long size = sizeOf.applyAsLong(next);
+      long currentSize = sizeOf.applyAsLong(current);
+      if (size == 0 || size < currentSize * MIN_SIZE_RATIO) {
+        throw new IOException("ignoring " + source + " with size " + size + ", down from "
+            + currentSize + "; it may be truncated");
+      }
+      current = next;
+      lastModified = modified;
+      LOGGER.log(Level.INFO, "reloaded dataset from " + source);
+      return true;
+    }
+  }
+
+  private long readVersion() {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    try {
+      return (long) datastore.get(versionKey).getProperty(VERSION_PROPERTY);
+    } catch (EntityNotFoundException e) {
+      return 0;
+    }
+  }
+
+  /** Bumps the shared version number and returns the new one. */
+  private long publishVersion() {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Transaction transaction = datastore.beginTransaction();
+    try {
+      Entity entity;
+      try {
+        entity = datastore.get(transaction, versionKey);
+      } catch (EntityNotFoundException e) {
+        entity = new Entity(versionKey);
+        entity.setProperty(VERSION_PROPERTY, 0L);
+      }
+      long version = (long) entity.getProperty(VERSION_PROPERTY) + 1;
+      entity.setUnindexedProperty(VERSION_PROPERTY, version);
+      datastore.put(transaction, entity);
+      transaction.commit();
+      return version;
+    } finally {
+      if (transaction.isActive()) {
+        transaction.rollback();
+      }
+    }
+  }
+}
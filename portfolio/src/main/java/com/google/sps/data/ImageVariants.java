@@ -0,0 +1,48 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.StringJoiner;
+
+/**
+ * Resized variants of uploaded images. Images service serving URLs resize on request when a
+ * size option ({@code =sN}, longest side N pixels) is appended, and the service caches each size
+ * it has produced. So the fixed sizes here cost nothing to store and only need to be named in
+ * a srcset for the browser to fetch the smallest one that fits.
+ */
+public final class ImageVariants {
+
+  // Comment images are shown 50px wide; these cover 1x to 4x screens.
+  private static final int[] SIZES = {64, 128, 256};
+
+  private ImageVariants() {}
+
+  /** Returns the URL of {@code servingUrl} resized to at most {@code size} pixels. */
+  public static String resized(String servingUrl, int size) {
+    return servingUrl + "=s" + size;
+  }
+
+  /** Returns a srcset listing every variant of {@code servingUrl}, or null if it is null. */
+  public static String srcset(String servingUrl) {
+    if (servingUrl == null) {
+      return null;
+    }
+    StringJoiner srcset = new StringJoiner(", ");
+    for (int size : SIZES) {
+      srcset.add(resized(servingUrl, size) + " " + size + "w");
+    }
+    return srcset.toString();
+  }
+}
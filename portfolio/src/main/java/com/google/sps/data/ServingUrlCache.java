@@ -0,0 +1,84 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.images.ImagesService;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import com.google.appengine.api.images.ServingUrlOptions;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Optional;
+
+/**
+ * Serving URLs of uploaded images by blob key. A blob's serving URL never changes, so once the
+ * images service has resolved it (or rejected the blob as not an image) the answer is kept for
+ * as long as there is room, and retried or repeated lookups cost nothing.
+ */
+public final class ServingUrlCache {
+
+  private static final int MAX_ENTRIES = 1000;
+
+  private static final ServingUrlCache INSTANCE = new ServingUrlCache();
+
+  private final LoadingCache<BlobKey, Optional<String>> urls = CacheBuilder.newBuilder()
+      .maximumSize(MAX_ENTRIES)
+      .build(new CacheLoader<BlobKey, Optional<String>>() {
+        @Override
+        public Optional<String> load(BlobKey blobKey) {
+          return loadServingUrl(blobKey);
+        }
+      });
+
+  private ServingUrlCache() {}
+
+  public static ServingUrlCache getInstance() {
+    return INSTANCE;
+  }
+
+  /** Returns a URL that points to the uploaded image, or empty if it is not a valid image. */
+  public Optional<String> get(BlobKey blobKey) {
+    return urls.getUnchecked(blobKey);
+  }
+
+  /** Forgets {@code blobKey}, e.g. once the blob has been deleted. */
+  public void invalidate(BlobKey blobKey) {
+    urls.invalidate(blobKey);
+  }
+
+  private static Optional<String> loadServingUrl(BlobKey blobKey) {
+    // Use ImagesService to get a URL that points to the uploaded file.
+    ImagesService imagesService = ImagesServiceFactory.getImagesService();
+    ServingUrlOptions options = ServingUrlOptions.Builder.withBlobKey(blobKey);
+
+    // To support running in Google Cloud Shell with AppEngine's devserver, we must use the relative
+    // path to the image, rather than the path returned by imagesService which contains a host.
+    String servingUrl;
+    try {
+      servingUrl = imagesService.getServingUrl(options);
+    } catch (IllegalArgumentException e) {
+      // Uploaded file was not a valid image file. 
+      return Optional.empty();
+    }
+    try {
+      return Optional.of(new URL(servingUrl).getPath());
+    } catch (MalformedURLException e) {
+      return Optional.of(servingUrl);
+    }
+  }
+}
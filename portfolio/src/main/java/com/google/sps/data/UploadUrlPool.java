@@ -0,0 +1,134 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of pre-generated Blobstore upload URLs for the comment form, so rendering the form does not
+ * wait on Blobstore. Each URL accepts a single upload and expires about 10 minutes after it is
+ * created; it is only handed out while enough of that time is left to fill in the form. The pool
+ * holds only as many URLs as were taken in the last such window, so a quiet instance does not
+ * create URLs that expire unused. It is topped up by a push task, never by the request that takes
+ * a URL; if it is empty, that request creates a single URL directly.
+ */
+public final class UploadUrlPool {
+
+  /** Where the task queue delivers refill tasks; see UploadUrlRefillServlet. */
+  public static final String REFILL_URL = "/tasks/refill-upload-urls";
+
+  private static final Logger LOGGER = Logger.getLogger(UploadUrlPool.class.getName());
+
+  private static final String UPLOAD_PATH = "/data";
+  private static final int MAX_SIZE = 10;
+  // Blobstore keeps upload URLs valid for 10 minutes; leave the user at least 5 to submit.
+  private static final long MAX_AGE_MILLIS = 5 * 60 * 1000;
+  // At most one refill task per instance is queued in this time.
+  private static final long REFILL_INTERVAL_MILLIS = 10 * 1000;
+
+  private static final UploadUrlPool INSTANCE = new UploadUrlPool();
+
+  /** An upload URL and when it was created. */
+  private static class PooledUrl {
+    private final String url;
+    private final long createdMillis;
+
+    private PooledUrl(String url, long createdMillis) {
+      this.url = url;
+      this.createdMillis = createdMillis;
+    }
+  }
+
+  private final BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
+  // Oldest first, so expired URLs are found at the head.
+  private final ConcurrentLinkedQueue<PooledUrl> urls = new ConcurrentLinkedQueue<>();
+  // Tracks the queue's size, which ConcurrentLinkedQueue only computes by walking it.
+  private final AtomicInteger size = new AtomicInteger();
+  // When the last MAX_SIZE URLs were taken, in a ring; more than that are never pooled anyway.
+  private final AtomicLongArray takenMillis = new AtomicLongArray(MAX_SIZE);
+  private final AtomicLong taken = new AtomicLong();
+  private final AtomicLong nextRefillMillis = new AtomicLong();
+
+  private UploadUrlPool() {}
+
+  public static UploadUrlPool getInstance() {
+    return INSTANCE;
+  }
+
+  /** Returns an unused upload URL that stays valid for at least a few minutes. */
+  public String take() {
+    long now = System.currentTimeMillis();
+    takenMillis.set((int) (taken.getAndIncrement() % MAX_SIZE), now);
+    PooledUrl pooled;
+    while ((pooled = urls.poll()) != null) {
+      size.decrementAndGet();
+      if (now - pooled.createdMillis < MAX_AGE_MILLIS) {
+        break;
+      }
+    }
+
+    long next = nextRefillMillis.get();
+    if (size.get() < getDemand(now) && now >= next
+        && nextRefillMillis.compareAndSet(next, now + REFILL_INTERVAL_MILLIS)) {
+      try {
+        QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withUrl(REFILL_URL));
+      } catch (RuntimeException e) {
+        // The next request that finds the pool short tries again.
+        LOGGER.log(Level.WARNING, "could not queue upload URL pool refill", e);
+      }
+    }
+    return pooled != null ? pooled.url : blobstoreService.createUploadUrl(UPLOAD_PATH);
+  }
+
+  /**
+   * Tops the pool up to the number of URLs taken in the last {@code MAX_AGE_MILLIS}. Called by
+   * the refill task, which may run on a different instance than the one that queued it.
+   */
+  public void refill() {
+    long now = System.currentTimeMillis();
+    PooledUrl oldest;
+    while ((oldest = urls.peek()) != null && now - oldest.createdMillis >= MAX_AGE_MILLIS) {
+      if (urls.remove(oldest)) {
+        size.decrementAndGet();
+      }
+    }
+    for (int missing = getDemand(now) - size.get(); missing > 0; missing--) {
+      String url = blobstoreService.createUploadUrl(UPLOAD_PATH);
+      urls.add(new PooledUrl(url, System.currentTimeMillis()));
+      size.incrementAndGet();
+    }
+  }
+
+  /** Returns how many URLs were taken in the last {@code MAX_AGE_MILLIS}, up to MAX_SIZE. */
+  private int getDemand(long now) {
+    int demand = 0;
+    for (int i = 0; i < takenMillis.length(); i++) {
+      long millis = takenMillis.get(i);
+      if (millis != 0 && now - millis < MAX_AGE_MILLIS) {
+        demand++;
+      }
+    }
+    return demand;
+  }
+}
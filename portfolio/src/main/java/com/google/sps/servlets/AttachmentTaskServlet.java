@@ -0,0 +1,59 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.sps.data.CommentAttachments;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Runs the comment attachment tasks queued by {@link CommentAttachments#enqueue}. */
+@WebServlet(CommentAttachments.TASK_URL)
+public class AttachmentTaskServlet extends HttpServlet {
+
+  // After this many retries a comment that still can't be found is taken to be deleted.
+  private static final int MAX_MISSING_RETRIES = 5;
+
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    // App Engine strips this header from external requests, so only the task queue can call.
+    if (request.getHeader("X-AppEngine-QueueName") == null) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    Key commentKey;
+    BlobKey blobKey;
+    try {
+      commentKey = KeyFactory.stringToKey(request.getParameter(CommentAttachments.COMMENT_PARAM));
+      blobKey = new BlobKey(request.getParameter(CommentAttachments.BLOB_PARAM));
+    } catch (IllegalArgumentException | NullPointerException e) {
+      // Retrying a malformed task would never help, so report success to drop it.
+      return;
+    }
+
+    String retryCount = request.getHeader("X-AppEngine-TaskRetryCount");
+    boolean giveUp = retryCount != null && Integer.parseInt(retryCount) >= MAX_MISSING_RETRIES;
+    if (!CommentAttachments.process(commentKey, blobKey, giveUp)) {
+      // The comment's batched write has not landed yet; let the queue try again later.
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "comment not stored yet");
+    }
+  }
+}
@@ -14,8 +14,7 @@
 
 package com.google.sps.servlets;
 
-import com.google.appengine.api.blobstore.BlobstoreService;
-import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.sps.data.UploadUrlPool;
 import java.io.IOException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -23,17 +22,19 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * Generate Blobstore upload URL.
+ * Generate Blobstore upload URL. URLs come from a pre-generated pool, so this does not call
+ * Blobstore unless the pool has run dry.
  */
 @WebServlet("/blobstore-upload-url")
 public class BlobstoreUploadUrlServlet extends HttpServlet {
 
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
-    BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
-    String uploadUrl = blobstoreService.createUploadUrl("/data");
+    String uploadUrl = UploadUrlPool.getInstance().take();
 
     response.setContentType("text/html");
+    // Every URL is single-use, so the response must never be reused.
+    response.setHeader("Cache-Control", "no-store");
     response.getWriter().println(uploadUrl);
   }
 }
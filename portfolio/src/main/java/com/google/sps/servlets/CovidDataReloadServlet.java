@@ -0,0 +1,47 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.sps.data.DatasetReloader;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** 
+ * Run by the cron job in cron.xml: reloads the COVID-19 data if its source changed, and tells the
+ * other instances to reload it too.
+ */
+@WebServlet("/tasks/reload-covid-data")
+public class CovidDataReloadServlet extends HttpServlet {
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    // App Engine strips this header from external requests, so only cron can call.
+    if (request.getHeader("X-Appengine-Cron") == null) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    DatasetReloader<?> reloader =
+        (DatasetReloader<?>) getServletContext().getAttribute(CovidDataServlet.RELOADER_ATTRIBUTE);
+    if (reloader == null) {
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "COVID-19 data not loaded");
+      return;
+    }
+    reloader.checkSource();
+  }
+}
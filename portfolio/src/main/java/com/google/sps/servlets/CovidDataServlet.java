@@ -14,87 +14,225 @@
 
 package com.google.sps.servlets;
 
-import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import com.google.sps.data.CachedJson;
+import com.google.sps.data.CovidDataset;
+import com.google.sps.data.CovidSeries;
+import com.google.sps.data.CovidSeries.Aggregation;
+import com.google.sps.data.CovidSeries.Metric;
+import com.google.sps.data.CovidSeries.Resolution;
+import com.google.sps.data.DatasetReloader;
 import java.io.IOException;
-import java.lang.NumberFormatException;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.LinkedHashMap;
-import java.util.List;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import java.util.Scanner;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-/** Returns COVID-19 data as a JSON object, e.g. {"2020-01-27": {totalCases: 2820, newCases: 20}} */
-@WebServlet("/covid-data")
+/** 
+ * Returns COVID-19 data as a JSON object, e.g. {"2020-01-27": {totalCases: 2820, newCases: 20}}.
+ * Worldwide data is returned unless {@code country} gives an ISO code such as {@code USA}.
+ * Other optional parameters narrow the response: {@code from} and {@code to} (inclusive, yyyy-MM-dd),
+ * {@code resolution} (day, week or month) and {@code aggregate} (max or sum). By default weekly
+ * and monthly buckets take the max of totalCases and the sum of newCases. {@code series} selects
+ * a comma-separated list of values to return instead of totalCases and newCases, including the
+ * precomputed newCases7DayAverage, newCases14DayAverage, doublingDays and weekOverWeekChange;
+ * values that are not defined for a date are left out.
+ */
+// Loaded at startup so the reloader exists for CovidDataReloadServlet.
+@WebServlet(urlPatterns = "/covid-data", loadOnStartup = 1)
 public class CovidDataServlet extends HttpServlet {
 
+  private static final Set<Metric> DEFAULT_METRICS =
+      EnumSet.of(Metric.TOTAL_CASES, Metric.NEW_CASES);
+
+  /** Loaded COVID-19 data together with the responses precomputed from it. */
   private static class CovidData {
-    private final int totalCases;
-    private final int newCases;
+    // Total cases and new cases of COVID-19 by country and date.
+    private final CovidDataset dataset;
+    // Responses for the whole worldwide series, by the values selected. There are only as many as
+    // there are subsets of Metric, so this stays small.
+    private final Map<Set<Metric>, CachedJson> fullResponses = new ConcurrentHashMap<>();
+
+    private CovidData(CovidDataset dataset) {
+      this.dataset = dataset;
+    }
+
+    private static CovidData load(InputStream in) throws IOException {
+      CovidData data = new CovidData(CovidDataset.load(in));
+      data.getFullResponse(DEFAULT_METRICS);
+      return data;
+    }
 
-    private CovidData(int totalCases, int newCases) {
-      this.totalCases = totalCases;
-      this.newCases = newCases;
+    private CachedJson getFullResponse(Set<Metric> metrics) {
+      return fullResponses.computeIfAbsent(metrics, selected -> {
+        StringWriter json = new StringWriter();
+        try {
+          writeJson(dataset.getDefaultSeries(), selected, json);
+        } catch (IOException e) {
+          // A StringWriter never throws.
+          throw new UncheckedIOException(e);
+        }
+        return CachedJson.fromJson(json.toString());
+      });
     }
   }
 
-  // Map from date to total cases and new cases of COVID-19.
-  private LinkedHashMap<Date, Object> covidTotals = new LinkedHashMap<>();
-  private static final Logger LOGGER = Logger.getLogger( CovidDataServlet.class.getName() );
+  // Servlet context attribute holding the DatasetReloader, for CovidDataReloadServlet.
+  static final String RELOADER_ATTRIBUTE = CovidDataServlet.class.getName() + ".reloader";
+
+  private DatasetReloader<CovidData> covidData;
   
+  /** 
+   * Loads the bundled data. If the {@code covid.data.source} system property names a file or URL,
+   * that is read instead. The cron job in cron.xml checks it for changes, and every instance picks
+   * up a change within {@code covid.data.checkIntervalSeconds}.
+   */
   @Override
-  public void init() {
-    Scanner scanner = new Scanner(getServletContext().getResourceAsStream(
-        "/WEB-INF/owid-covid-data.csv"));
-    int row = 0;
-    while (scanner.hasNextLine()) {
-      String line = scanner.nextLine();
-      row++;
-      String[] cells = line.split(",");
-
-      Date date = new Date();
-      try {
-        date = new SimpleDateFormat("yyyy-MM-dd").parse(cells[0]);
-      } catch (ParseException pex) {
-        pex.printStackTrace();
-        LOGGER.log(Level.WARNING, "invalid date string");
-        continue;
-      }    
-
-      // Validation checks for parsing COVID-19 numbers.
-      int totalCases = 0;
-      int newCases = 0;
-      try {
-        totalCases = Integer.valueOf(cells[1]);
-        newCases = Integer.valueOf(cells[2]);
-      } catch (NumberFormatException nfex) {
-        LOGGER.log(Level.WARNING, "invalid parsing for row :" + row);
-        continue;
-      }
+  public void init() throws ServletException {
+    CovidData initial;
+    try (InputStream in = getServletContext().getResourceAsStream("/WEB-INF/owid-covid-data.csv")) {
+      initial = CovidData.load(in);
+    } catch (IOException e) {
+      throw new ServletException("could not read COVID-19 data", e);
+    }
 
-      if (totalCases < 0 || newCases < 0) {
-        LOGGER.log(Level.WARNING, "number of cases cannot be negative");
-        continue;
+    URL source = null;
+    String sourceProperty = System.getProperty("covid.data.source");
+    if (sourceProperty != null && !sourceProperty.isEmpty()) {
+      try {
+        source = new URL(sourceProperty);
+      } catch (MalformedURLException e) {
+        throw new ServletException("invalid covid.data.source: " + sourceProperty, e);
       }
-      
-      CovidData newData = new CovidData(totalCases, newCases);      
-      covidTotals.put(date, newData);
     }
-    scanner.close();
+    long checkIntervalMillis = Long.getLong("covid.data.checkIntervalSeconds", 30) * 1000;
+    covidData = new DatasetReloader<>("covid", initial, source, checkIntervalMillis,
+        CovidData::load, data -> data.dataset.getRowCount());
+    try {
+      covidData.load();
+    } catch (IOException | RuntimeException e) {
+      // Serve the bundled data until the next check succeeds.
+      log("could not read COVID-19 data from " + source, e);
+    }
+    getServletContext().setAttribute(RELOADER_ATTRIBUTE, covidData);
   }
 
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    CovidData data = covidData.get();
+    if (request.getParameterMap().keySet().stream().allMatch("series"::equals)) {
+      Set<Metric> metrics;
+      try {
+        metrics = parseMetrics(request.getParameter("series"));
+      } catch (IllegalArgumentException e) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+        return;
+      }
+      data.getFullResponse(metrics).writeTo(request, response);
+      return;
+    }
+
+    CovidSeries series = data.dataset.getDefaultSeries();
+    String country = request.getParameter("country");
+    if (country != null && !country.isEmpty()) {
+      series = data.dataset.getSeries(country.toUpperCase(Locale.ROOT));
+      if (series == null) {
+        response.sendError(HttpServletResponse.SC_NOT_FOUND, "no COVID-19 data for " + country);
+        return;
+      }
+    }
+
+    Set<Metric> metrics;
+    try {
+      series = slice(series, request);
+      metrics = parseMetrics(request.getParameter("series"));
+    } catch (IllegalArgumentException | DateTimeParseException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+      return;
+    }
     response.setContentType("application/json");
-    Gson gson = new Gson();
-    String json = gson.toJson(covidTotals);
-    response.getWriter().println(json);
+    writeJson(series, metrics, response.getWriter());
+  }
+
+  private static void writeJson(CovidSeries series, Set<Metric> metrics, Writer out) 
+      throws IOException {
+    JsonWriter writer = new JsonWriter(out);
+    writer.beginObject();
+    for (int i = 0; i < series.size(); i++) {
+      writer.name(LocalDate.ofEpochDay(series.getEpochDay(i)).toString());
+      writer.beginObject();
+      for (Metric metric : metrics) {
+        if (metric == Metric.TOTAL_CASES) {
+          writer.name(metric.getName()).value(series.getTotalCases(i));
+        } else if (metric == Metric.NEW_CASES) {
+          writer.name(metric.getName()).value(series.getNewCases(i));
+        } else {
+          double value = series.getValue(metric, i);
+          if (!Double.isNaN(value)) {
+            // Derived values are floats; two decimals are all a chart needs.
+            writer.name(metric.getName()).value(Math.round(value * 100) / 100.0);
+          }
+        }
+      }
+      writer.endObject();
+    }
+    writer.endObject();
+    writer.flush();
+  }
+
+  /** Returns the part of the data selected by the request's parameters. */
+  private static CovidSeries slice(CovidSeries covidSeries, HttpServletRequest request) {
+    int fromDay = parseDay(request.getParameter("from"), Integer.MIN_VALUE);
+    int toDay = parseDay(request.getParameter("to"), Integer.MAX_VALUE);
+
+    String resolutionParam = request.getParameter("resolution");
+    Resolution resolution = resolutionParam == null 
+        ? Resolution.DAY : Resolution.valueOf(resolutionParam.toUpperCase(Locale.ROOT));
+
+    Aggregation totalAggregation = Aggregation.MAX;
+    Aggregation newAggregation = Aggregation.SUM;
+    String aggregateParam = request.getParameter("aggregate");
+    if (aggregateParam != null) {
+      totalAggregation = Aggregation.valueOf(aggregateParam.toUpperCase(Locale.ROOT));
+      newAggregation = totalAggregation;
+    }
+
+    return covidSeries.slice(fromDay, toDay, resolution, totalAggregation, newAggregation);
+  }
+
+  private static Set<Metric> parseMetrics(String param) {
+    if (param == null || param.isEmpty()) {
+      return DEFAULT_METRICS;
+    }
+    Set<Metric> metrics = EnumSet.noneOf(Metric.class);
+    for (String name : param.split(",")) {
+      Metric metric = Metric.forName(name.trim());
+      if (metric == null) {
+        throw new IllegalArgumentException("unknown series: " + name);
+      }
+      metrics.add(metric);
+    }
+    return metrics;
+  }
+
+  private static int parseDay(String date, int defaultDay) {
+    if (date == null || date.isEmpty()) {
+      return defaultDay;
+    }
+    return (int) LocalDate.parse(date).toEpochDay();
   }
 }
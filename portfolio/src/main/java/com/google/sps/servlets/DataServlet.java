@@ -14,30 +14,26 @@
 
 package com.google.sps.servlets;
 
-import com.google.appengine.api.blobstore.BlobInfo;
-import com.google.appengine.api.blobstore.BlobInfoFactory;
 import com.google.appengine.api.blobstore.BlobKey;
 import com.google.appengine.api.blobstore.BlobstoreService;
 import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
-import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.FetchOptions;
-import com.google.appengine.api.datastore.PreparedQuery;
-import com.google.appengine.api.datastore.Query;
-import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.QueryResultIterator;
 import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.UserServiceFactory;
-import com.google.appengine.api.images.ImagesService;
-import com.google.appengine.api.images.ImagesServiceFactory;
-import com.google.appengine.api.images.ServingUrlOptions;
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
 import com.google.sps.data.Comment;
+import com.google.sps.data.CommentAttachments;
+import com.google.sps.data.CommentCache;
+import com.google.sps.data.CommentFeedQuery;
+import com.google.sps.data.CommentPage;
+import com.google.sps.data.CommentWriter;
 import java.io.IOException;
 import java.lang.IllegalArgumentException;
 import java.lang.IllegalStateException;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -52,30 +48,92 @@ import javax.servlet.http.HttpServletResponse;
 public class DataServlet extends HttpServlet {
 
   private static final String DEFAULT_INPUT_NAME = "Anonymous";
+  private static final int MAX_PAGE_SIZE = 100;
+  private static final int STREAM_CHUNK_SIZE = 50;
+  private static final Gson GSON = new Gson();
 
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
-    Query query = new Query(Comment.getEntityKind()).addSort("timestampMillis", SortDirection.DESCENDING);
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    // Paged mode: /data?page-size=N[&cursor=...] returns {comments: [...], cursor: "..."}.
+    if (request.getParameter("page-size") != null) {
+      doGetPage(request, response);
+      return;
+    }
 
     int limit = Integer.parseInt(request.getParameter("comment-limit"));
-    List<Entity> results = datastore.prepare(query).asList(FetchOptions.Builder.withLimit(limit));
+    if (limit > CommentCache.MAX_CACHED_LIMIT) {
+      streamComments(limit, response);
+      return;
+    }
+    CommentCache.getInstance().getNewestJson(limit, /* asPage= */ false).writeTo(request, response);
+  }
 
+  /**
+   * Writes up to {@code limit} comments straight to the response as the Datastore returns them,
+   * one chunk at a time, so neither memory use nor time to first byte grows with the limit.
+   */
+  private static void streamComments(int limit, HttpServletResponse response) throws IOException {
+    QueryResultIterator<Entity> results = CommentFeedQuery.run(
+        FetchOptions.Builder.withLimit(limit).chunkSize(STREAM_CHUNK_SIZE));
+
+    response.setContentType("application/json;charset=UTF-8");
+    JsonWriter writer = new JsonWriter(response.getWriter());
+    writer.beginArray();
+    while (results.hasNext()) {
+      GSON.toJson(Comment.fromEntity(results.next()), Comment.class, writer);
+    }
+    writer.endArray();
+    writer.flush();
+  }
+
+  /** 
+   * Returns a single page of comments starting at the opaque Datastore cursor from the previous
+   * page, so loading older comments only reads and serializes the new page.
+   */
+  private void doGetPage(HttpServletRequest request, HttpServletResponse response) 
+      throws IOException {
+    int pageSize;
+    try {
+      pageSize = Integer.parseInt(request.getParameter("page-size"));
+    } catch (NumberFormatException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "page-size must be a number");
+      return;
+    }
+    if (pageSize <= 0 || pageSize > MAX_PAGE_SIZE) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, 
+          "page-size must be between 1 and " + MAX_PAGE_SIZE);
+      return;
+    }
+
+    // The first page is the same newest-comments query every page load runs, so serve it cached.
+    String startCursor = request.getParameter("cursor");
+    if (startCursor == null || startCursor.isEmpty()) {
+      CommentCache.getInstance().getNewestJson(pageSize, /* asPage= */ true).writeTo(request, response);
+      return;
+    }
+
+    FetchOptions fetchOptions = FetchOptions.Builder.withLimit(pageSize);
+    try {
+      fetchOptions.startCursor(Cursor.fromWebSafeString(startCursor));
+    } catch (IllegalArgumentException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "invalid cursor");
+      return;
+    }
+
+    QueryResultIterator<Entity> results = CommentFeedQuery.run(fetchOptions);
     List<Comment> comments = new ArrayList<>();
-    for (Entity entity : results) {
-      Comment comment = new Comment(
-        entity.getKey().getId(),
-        (String) entity.getProperty("name"),
-        (String) entity.getProperty("email"),
-        (long) entity.getProperty("timestampMillis"),
-        (String) entity.getProperty("commentInput"),
-        (String) entity.getProperty("fileUrl")
-      );
-      comments.add(comment);
+    while (results.hasNext()) {
+      comments.add(Comment.fromEntity(results.next()));
+    }
+
+    // A short page means there is nothing older left to load.
+    String nextCursor = null;
+    if (comments.size() == pageSize && results.getCursor() != null) {
+      nextCursor = results.getCursor().toWebSafeString();
     }
 
     response.setContentType("application/json;");
-    response.getWriter().println(new Gson().toJson(comments));
+    response.getWriter().println(GSON.toJson(new CommentPage(comments, nextCursor)));
   }
 
   @Override
@@ -95,18 +153,33 @@ public class DataServlet extends HttpServlet {
     UserService userService = UserServiceFactory.getUserService();
     String email = userService.getCurrentUser().getEmail();
 
+    // Handle file upload input from form. The image is checked and its serving URL resolved by
+    // a queued task (see CommentAttachments), which needs the comment's key up front.
+    Optional<BlobKey> blobKey = getUploadedBlobKey(request, "file");
+
     // Create a new Comment and add it to the Datastore.
-    Entity commentEntity = new Entity(Comment.getEntityKind());
+    Entity commentEntity = blobKey.isPresent() 
+        ? new Entity(CommentAttachments.allocateCommentKey()) 
+        : new Entity(Comment.getEntityKind());
     commentEntity.setProperty("name", name);
     commentEntity.setProperty("email", email);
     commentEntity.setProperty("commentInput", commentInput);
     commentEntity.setProperty("timestampMillis", timestampMillis);
+    // Always store the property, even when null, so the comment shows up in projection queries
+    // over fileUrl. The attachment task fills it in.
+    commentEntity.setProperty("fileUrl", null);
+    if (blobKey.isPresent()) {
+      // Keep the blob key so deleting the comment can delete the upload too.
+      commentEntity.setUnindexedProperty("blobKey", blobKey.get());
+      commentEntity.setUnindexedProperty(CommentAttachments.STATUS_PROPERTY, 
+                                         CommentAttachments.STATUS_PENDING);
+    }
 
-    // Handle file upload input from form.
-    getUploadedFileUrl(request, "file").ifPresent(fileUrl -> commentEntity.setProperty("fileUrl", fileUrl));
-
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-    datastore.put(commentEntity); 
+    // Batched with any other comments submitted at the same time; see CommentWriter.
+    CommentWriter.getInstance().write(commentEntity);
+    if (blobKey.isPresent()) {
+      CommentAttachments.enqueue(commentEntity.getKey(), blobKey.get());
+    }
 
     // Redirect back to the blog page.
     response.sendRedirect("/blog.html");
@@ -120,9 +193,9 @@ public class DataServlet extends HttpServlet {
     return value;
   }
 
-  /** Returns a URL that points to the uploaded file, or null if the user didn't upload a file. */
-  private static Optional<String> getUploadedFileUrl(HttpServletRequest request, 
-                                                     String formInputElementName) {
+  /** Returns the key of the uploaded file, or empty if the user didn't upload a file. */
+  private static Optional<BlobKey> getUploadedBlobKey(HttpServletRequest request, 
+                                                      String formInputElementName) {
     BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
     Map<String, List<BlobKey>> blobs = blobstoreService.getUploads(request);
     List<BlobKey> blobKeys = blobs.get(formInputElementName);
@@ -137,30 +210,8 @@ public class DataServlet extends HttpServlet {
       throw new IllegalStateException("There should only be one file input.");
     }
 
-    // Our form only contains a single file input, so get the first index.
-    BlobKey blobKey = blobKeys.get(0);
-
-    // User submitted form without selecting a file, so we can't get a URL. (live server)
-    BlobInfo blobInfo = new BlobInfoFactory().loadBlobInfo(blobKey);
-    if (blobInfo.getSize() == 0) {
-      blobstoreService.delete(blobKey);
-      return Optional.empty();
-    }
-
-    // Use ImagesService to get a URL that points to the uploaded file.
-    ImagesService imagesService = ImagesServiceFactory.getImagesService();
-    ServingUrlOptions options = ServingUrlOptions.Builder.withBlobKey(blobKey);
-
-    // To support running in Google Cloud Shell with AppEngine's devserver, we must use the relative
-    // path to the image, rather than the path returned by imagesService which contains a host.
-    try {
-      URL url = new URL(imagesService.getServingUrl(options));
-      return Optional.of(url.getPath());
-    } catch (MalformedURLException e) {
-      return Optional.of(imagesService.getServingUrl(options));
-    } catch (IllegalArgumentException e) {
-      // Uploaded file was not a valid image file. 
-      return Optional.empty();
-    }
+    // Our form only contains a single file input, so get the first index. An empty upload (live
+    // server) is discarded by the attachment task.
+    return Optional.of(blobKeys.get(0));
   }
 }
@@ -14,27 +14,78 @@
 
 package com.google.sps.servlets;
 
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.sps.data.Comment;
+import com.google.sps.data.CommentCache;
+import com.google.sps.data.CommentCounter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-/** Servlet that deletes comment entities from the Datastore. */
+/** 
+ * Servlet that deletes comment entities from the Datastore. Takes one or more {@code id}
+ * parameters and removes all of them, and their uploaded files, with one batch lookup and one
+ * batch delete.
+ */
 @WebServlet("/delete-data")
 public class DeleteCommentServlet extends HttpServlet {
 
   @Override
   public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
-    long id = Long.parseLong(request.getParameter("id"));
+    String[] ids = request.getParameterValues("id");
+    if (ids == null || ids.length == 0) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "no comment id given");
+      return;
+    }
 
-    Key commentEntityKey = KeyFactory.createKey(Comment.getEntityKind(), id);
+    List<Key> commentEntityKeys = new ArrayList<>();
+    try {
+      for (String id : ids) {
+        commentEntityKeys.add(KeyFactory.createKey(Comment.getEntityKind(), Long.parseLong(id)));
+      }
+    } catch (NumberFormatException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "invalid comment id");
+      return;
+    }
+
+    // Look the comments up first so only ones that actually existed are counted, and so their
+    // uploaded files can be deleted along with them. Two requests deleting the same comment at
+    // once may both count it; that is rare enough to accept for one round trip per call.
     DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-    datastore.delete(commentEntityKey);
+    Map<Key, Entity> existing = datastore.get(commentEntityKeys);
+    if (existing.isEmpty()) {
+      return;
+    }
+    datastore.delete(existing.keySet());
+
+    CommentCache.getInstance().invalidate();
+    CommentCounter.getInstance().add(-existing.size());
+
+    List<BlobKey> blobKeys = new ArrayList<>();
+    for (Entity entity : existing.values()) {
+      BlobKey blobKey = (BlobKey) entity.getProperty("blobKey");
+      if (blobKey != null) {
+        blobKeys.add(blobKey);
+      }
+    }
+    if (!blobKeys.isEmpty()) {
+      try {
+        BlobstoreServiceFactory.getBlobstoreService().delete(blobKeys.toArray(new BlobKey[0]));
+      } catch (RuntimeException e) {
+        // The comments are gone; an orphaned file only costs storage.
+        log("could not delete files of deleted comments", e);
+      }
+    }
   }
 }
@@ -14,44 +14,58 @@
 
 package com.google.sps.servlets;
 
-import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
-import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.PreparedQuery;
-import com.google.appengine.api.datastore.Query;
-import com.google.appengine.api.datastore.Query.SortDirection;
 import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.UserServiceFactory;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.sps.data.CachedJson;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-/** Servlet that checks user login status and provides a login/logout URL accordingly. */
+/** 
+ * Servlet that checks user login status and provides a login/logout URL accordingly, as JSON such
+ * as {loggedIn: false, url: "..."}. The URLs only depend on the login state and the host they
+ * return to, so each response body is built once and reused. Responses vary by cookie; the
+ * logged-out one may be cached by shared caches for a few minutes.
+ */
 @WebServlet("/login")
 public class LoginServlet extends HttpServlet {
   
   private static final String REDIRECT_URL = "/blog.html";
+  // Hosts are few in practice, but the Host header is client-controlled, so bound the cache.
+  private static final int MAX_CACHED_RESPONSES = 16;
+  private static final String LOGGED_OUT_CACHE_CONTROL = "public, max-age=300";
+  private static final String LOGGED_IN_CACHE_CONTROL = "private, no-cache";
+
+  // Keyed by login state and server name, e.g. "in:example.appspot.com".
+  private static final LoadingCache<String, CachedJson> RESPONSES = CacheBuilder.newBuilder()
+      .maximumSize(MAX_CACHED_RESPONSES)
+      .build(new CacheLoader<String, CachedJson>() {
+        @Override
+        public CachedJson load(String key) {
+          UserService userService = UserServiceFactory.getUserService();
+          boolean loggedIn = key.startsWith("in:");
+          Map<String, Object> status = new LinkedHashMap<>();
+          status.put("loggedIn", loggedIn);
+          status.put("url", loggedIn 
+              ? userService.createLogoutURL(REDIRECT_URL) 
+              : userService.createLoginURL(REDIRECT_URL));
+          return CachedJson.of(status);
+        }
+      });
 
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
-    response.setContentType("text/html;");
-    UserService userService = UserServiceFactory.getUserService();
-
-    if (userService.isUserLoggedIn()) {
-      String logoutUrl = userService.createLogoutURL(REDIRECT_URL);
+    boolean loggedIn = UserServiceFactory.getUserService().isUserLoggedIn();
+    CachedJson status = RESPONSES.getUnchecked((loggedIn ? "in:" : "out:") + request.getServerName());
 
-      response.getWriter().println("logged in");
-      response.getWriter().println(logoutUrl);
-    } else {
-      String loginUrl = userService.createLoginURL(REDIRECT_URL);
-
-      response.getWriter().println("stranger");
-      response.getWriter().println(loginUrl);
-    }
+    response.addHeader("Vary", "Cookie");
+    status.writeTo(request, response, loggedIn ? LOGGED_IN_CACHE_CONTROL : LOGGED_OUT_CACHE_CONTROL);
   }
-
 }
@@ -19,7 +19,6 @@ const CAT_IMAGES = ["images/kitten-in-bed.jpg", "images/sleepy-kitten.jpg", "ima
 const POST_ID = "0cb628857f3c4c77bf7f9a879a6ec21d";
 const DEFAULT_COMMENT_LIMIT = 5;
 const PLACEHOLDER_URL = "images/squishycat.jpeg";
-const LOGGED_IN_STATUS = "logged in";
 
 /**
  * Adds a random greeting to the page.
@@ -62,15 +61,45 @@ getBlogPost = () => {
   });
 }
 
+// Datastore cursor for the next page of older comments, or null if there are none left.
+let nextCommentsCursor = null;
+
 /** 
- * Fetch comments from server and insert them on blog page.
+ * Fetch the newest page of comments from server and insert them on blog page.
  */
 getBlogComments = (commentLimit) => {
   if (commentLimit === null) commentLimit = DEFAULT_COMMENT_LIMIT;
-  fetch("/data?comment-limit=" + commentLimit).then(response => response.json()).then((comments) => {
-    const commentsContainer = document.getElementById("submitted-comments-container");
-    commentsContainer.innerHTML = '';
-    comments.forEach(comment => commentsContainer.appendChild(createCommentElement(comment)));
+  const commentsContainer = document.getElementById("submitted-comments-container");
+  if (commentsContainer === null) return;
+  commentsContainer.innerHTML = '';
+  nextCommentsCursor = null;
+  fetchCommentsPage(commentLimit, commentsContainer);
+}
+
+/**
+ * Fetch the next page of older comments and append them below the ones already shown.
+ */
+loadMoreComments = () => {
+  if (nextCommentsCursor === null) return;
+  let commentLimit = window.localStorage.getItem("comment-limit");
+  if (commentLimit === null) commentLimit = DEFAULT_COMMENT_LIMIT;
+  fetchCommentsPage(commentLimit, document.getElementById("submitted-comments-container"));
+}
+
+/** Fetch one page of comments starting at the saved cursor and append them to the container. */
+fetchCommentsPage = (pageSize, commentsContainer) => {
+  if (pageSize <= 0) {
+    document.getElementById("load-more-comments-button").style.display = "none";
+    return;
+  }
+  let url = "/data?page-size=" + pageSize;
+  if (nextCommentsCursor !== null) url += "&cursor=" + encodeURIComponent(nextCommentsCursor);
+  fetch(url).then(response => response.json()).then((page) => {
+    page.comments.forEach(comment => commentsContainer.appendChild(createCommentElement(comment)));
+    nextCommentsCursor = page.cursor === undefined ? null : page.cursor;
+
+    const loadMoreButton = document.getElementById("load-more-comments-button");
+    loadMoreButton.style.display = nextCommentsCursor === null ? "none" : "inline";
   });
 }
 
@@ -89,10 +118,20 @@ createCommentElement = (comment) => {
   fileElement.style.width = '50px';
   if (comment.fileUrl != null) {
     fileElement.src = comment.fileUrl;
+    // Let the browser fetch a resized variant instead of the full upload.
+    if (comment.srcset != null) {
+      fileElement.srcset = comment.srcset;
+      fileElement.sizes = '50px';
+    }
   } else {
     fileElement.src = PLACEHOLDER_URL;
   }
 
+  const selectElement = document.createElement('input');
+  selectElement.type = 'checkbox';
+  selectElement.className = 'comment-select';
+  selectElement.value = comment.id;
+
   const deleteButtonElement = document.createElement('button');
   deleteButtonElement.innerText = 'Delete';
   deleteButtonElement.addEventListener('click', () => {
@@ -104,6 +143,7 @@ createCommentElement = (comment) => {
   commentBlock.appendChild(commentInputElement);
   commentBlock.appendChild(fileElement);
   commentBlock.appendChild(document.createElement('br'));
+  commentBlock.appendChild(selectElement);
   commentBlock.appendChild(deleteButtonElement);
   commentBlock.appendChild(document.createElement('hr'));
   return commentBlock;
@@ -117,6 +157,16 @@ deleteComment = async (comment) => {
   getBlogComments(window.localStorage.getItem("comment-limit"));
 }
 
+/** Tells the server to delete every selected comment in a single request. */
+deleteSelectedComments = async () => {
+  const selected = document.querySelectorAll('.comment-select:checked');
+  if (selected.length === 0) return;
+  const params = new URLSearchParams();
+  selected.forEach(checkbox => params.append('id', checkbox.value));
+  let response = await fetch('/delete-data', {method: 'POST', body: params});
+  getBlogComments(window.localStorage.getItem("comment-limit"));
+}
+
 /** Fetch Blobstore URL and set it to HTML form. */
 fetchBlobstoreUrlAndSetForm = () => {
   fetch("/blobstore-upload-url").then(response => response.text()).then((urlstring) => {
@@ -127,17 +177,16 @@ fetchBlobstoreUrlAndSetForm = () => {
                                                                         
 /** Fetch login status and display comments form or login link accordingly. */
 getLoginStatus = () => {
-  fetch("/login").then(response => response.text()).then((result) => {
-    results = result.split("\n");
+  fetch("/login").then(response => response.json()).then((status) => {
     const commentsSubmissionForm = document.getElementById("comment-submission-form");    
     const loginContainer = document.getElementById("login-link-container");
     const logoutContainer = document.getElementById("logout-link-container");
     
-    if (results[0] == LOGGED_IN_STATUS) {
+    if (status.loggedIn) {
       commentsSubmissionForm.style.display = "inline";
 
       const logoutElement = document.getElementById("logout-link");
-      logoutElement.href = results[1];
+      logoutElement.href = status.url;
       
       loginContainer.style.display = "none";
       logoutContainer.style.display = "inline";
@@ -145,7 +194,7 @@ getLoginStatus = () => {
       commentsSubmissionForm.style.display = "none";
 
       const loginElement = document.getElementById("login-link");
-      loginElement.href = results[1];
+      loginElement.href = status.url;
 
       loginContainer.style.display = "inline";
       logoutContainer.style.display = "none";
@@ -170,6 +219,10 @@ window.onload = () => {
   }
 
   // Add event listeners to buttons
+  let loadMoreButton = document.getElementById("load-more-comments-button");
+  if (loadMoreButton !== null) loadMoreButton.addEventListener("click", loadMoreComments);
+  let deleteSelectedButton = document.getElementById("delete-selected-button");
+  if (deleteSelectedButton !== null) deleteSelectedButton.addEventListener("click", deleteSelectedComments);
   let greetButton = document.getElementById("greeting-button");
   greetButton.addEventListener("click", addRandomGreeting);
   let catButton = document.getElementById("random-cat-button");
@@ -207,14 +260,19 @@ drawPlantChart = () => {
  * Fetch data about COVID-19 and use it to create a chart.
  */
 drawCovidChart = () => {
-  fetch('/covid-data').then(response => response.json())
+  fetch('/covid-data?series=totalCases,newCases,newCases7DayAverage')
+  .then(response => response.json())
   .then((covidTotals) => {
     const data = new google.visualization.DataTable();
     data.addColumn('date', 'Date');
     data.addColumn('number', 'Total Cases');
     data.addColumn('number', 'New Cases');
+    data.addColumn('number', 'New Cases (7-day average)');
     Object.keys(covidTotals).forEach((date) => {
-      data.addRow([new Date(date), covidTotals[date].totalCases, covidTotals[date].newCases]);
+      const day = covidTotals[date];
+      // The average is left out for the first days of the series.
+      const average = day.newCases7DayAverage === undefined ? null : day.newCases7DayAverage;
+      data.addRow([new Date(date), day.totalCases, day.newCases, average]);
     });
 
     const options = {
@@ -0,0 +1,127 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Concurrency tests for the lock-free rings of {@link CommentCountSeries}. */
+@RunWith(JUnit4.class)
+public final class CommentCountSeriesTest {
+
+  private static final long BUCKET_SECONDS = 60;
+  private static final int CAPACITY = 16;
+  private static final int BUCKETS = 2000;
+  private static final int WRITERS = 8;
+
+  // Every writer records the same count for a bucket, so any point can be checked on its own.
+  private static long countFor(long bucketStart) {
+    return bucketStart / BUCKET_SECONDS * 3;
+  }
+
+  @Test
+  public void concurrentRecordsKeepEveryBucketOnce() throws Exception {
+    CommentCountSeries.Tier tier = new CommentCountSeries.Tier("minutes", BUCKET_SECONDS, CAPACITY);
+    CountDownLatch start = new CountDownLatch(1);
+    AtomicBoolean writing = new AtomicBoolean(true);
+    AtomicReference<String> readerFailure = new AtomicReference<>();
+
+    List<Thread> writers = new ArrayList<>();
+    for (int w = 0; w < WRITERS; w++) {
+      int offset = w;
+      writers.add(new Thread(() -> {
+        awaitQuietly(start);
+        for (long bucket = 1; bucket <= BUCKETS; bucket++) {
+          long bucketStart = bucket * BUCKET_SECONDS;
+          // Different seconds within the bucket must land in the same point.
+          tier.record(bucketStart + offset % BUCKET_SECONDS, countFor(bucketStart));
+        }
+      }));
+    }
+    Thread reader = new Thread(() -> {
+      awaitQuietly(start);
+      while (writing.get() && readerFailure.get() == null) {
+        readerFailure.compareAndSet(null, checkPoints(tier.snapshot()));
+      }
+    });
+
+    for (Thread writer : writers) {
+      writer.start();
+    }
+    reader.start();
+    start.countDown();
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    writing.set(false);
+    reader.join();
+
+    Assert.assertNull(readerFailure.get());
+    long[] points = tier.snapshot();
+    Assert.assertNull(checkPoints(points));
+    // The ring holds the newest CAPACITY buckets and the head holds the newest one.
+    Assert.assertEquals(CAPACITY + 1, points.length);
+    for (int i = 0; i < points.length; i++) {
+      long bucketStart = (BUCKETS - CAPACITY + i) * BUCKET_SECONDS;
+      Assert.assertEquals(bucketStart, CommentCountSeries.timeOf(points[i]));
+    }
+  }
+
+  @Test
+  public void lateRecordDoesNotReplaceNewerBucket() {
+    CommentCountSeries.Tier tier = new CommentCountSeries.Tier("minutes", BUCKET_SECONDS, CAPACITY);
+    tier.record(2 * BUCKET_SECONDS, 5);
+    tier.record(BUCKET_SECONDS, 4);
+
+    long[] points = tier.snapshot();
+    Assert.assertEquals(1, points.length);
+    Assert.assertEquals(2 * BUCKET_SECONDS, CommentCountSeries.timeOf(points[0]));
+    Assert.assertEquals(5, CommentCountSeries.countOf(points[0]));
+  }
+
+  /** Returns why {@code points} is not a valid snapshot, or null if it is. */
+  private static String checkPoints(long[] points) {
+    if (points.length > CAPACITY + 1) {
+      return "snapshot has " + points.length + " points";
+    }
+    long previous = -1;
+    for (long point : points) {
+      long time = CommentCountSeries.timeOf(point);
+      if (time <= previous || time % BUCKET_SECONDS != 0) {
+        return "bad or unordered bucket " + time + " after " + previous;
+      }
+      if (CommentCountSeries.countOf(point) != countFor(time)) {
+        return "torn point for bucket " + time;
+      }
+      previous = time;
+    }
+    return null;
+  }
+
+  private static void awaitQuietly(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
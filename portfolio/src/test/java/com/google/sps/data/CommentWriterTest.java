@@ -0,0 +1,313 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.KeyRange;
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.util.concurrent.Futures;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Concurrency tests for the leader/follower batching of {@link CommentWriter}. */
+@RunWith(JUnit4.class)
+public final class CommentWriterTest {
+
+  private static final int BATCH_SIZE = 5;
+  private static final int THREADS = 16;
+  private static final int WRITES_PER_THREAD = 50;
+  // Long enough that a test would time out if a lone write waited for it.
+  private static final long MAX_DELAY_MILLIS = 60 * 1000;
+  private static final long TIMEOUT_SECONDS = 30;
+
+  // What the fake Datastore holds, by key.
+  private Map<Key, Entity> stored;
+  // Last id the fake Datastore assigned or allocated.
+  private AtomicLong lastId;
+  // Whether a put of several entities stores them and then fails anyway, like a timeout.
+  private volatile boolean failBatchesAfterStoring;
+  private AtomicInteger storedEntities;
+  private AtomicInteger batchPuts;
+  private AtomicInteger largestBatch;
+  // Sum of the counts passed to the stored listener.
+  private AtomicInteger reportedStored;
+
+  /** Just enough of an App Engine environment to create entity keys outside a request. */
+  private static class TestEnvironment implements ApiProxy.Environment {
+    @Override
+    public String getAppId() {
+      return "test";
+    }
+
+    @Override
+    public String getModuleId() {
+      return "default";
+    }
+
+    @Override
+    public String getVersionId() {
+      return "1";
+    }
+
+    @Override
+    public String getEmail() {
+      return null;
+    }
+
+    @Override
+    public boolean isLoggedIn() {
+      return false;
+    }
+
+    @Override
+    public boolean isAdmin() {
+      return false;
+    }
+
+    @Override
+    public String getAuthDomain() {
+      return null;
+    }
+
+    @Override
+    public String getRequestNamespace() {
+      return "";
+    }
+
+    @Override
+    public Map<String, Object> getAttributes() {
+      return new HashMap<>();
+    }
+
+    @Override
+    public long getRemainingMillis() {
+      return Long.MAX_VALUE;
+    }
+  }
+
+  @Before
+  public void setUp() {
+    // Writer threads have no request, so every thread gets the test environment.
+    synchronized (ApiProxy.class) {
+      if (ApiProxy.getEnvironmentFactory() == null) {
+        ApiProxy.setEnvironmentFactory(TestEnvironment::new);
+      }
+    }
+    stored = new ConcurrentHashMap<>();
+    lastId = new AtomicLong();
+    failBatchesAfterStoring = false;
+    storedEntities = new AtomicInteger();
+    batchPuts = new AtomicInteger();
+    largestBatch = new AtomicInteger();
+    reportedStored = new AtomicInteger();
+  }
+
+  @Test
+  public void concurrentWritesAreEachStoredOnce() throws Exception {
+    CommentWriter writer = newWriter();
+
+    for (IOException failure : runWriters(writer, index -> newComment(false))) {
+      Assert.assertNull(failure);
+    }
+
+    int total = THREADS * WRITES_PER_THREAD;
+    Assert.assertEquals(total, stored.size());
+    Assert.assertEquals(total, storedEntities.get());
+    Assert.assertEquals(total, reportedStored.get());
+    Assert.assertTrue(largestBatch.get() <= BATCH_SIZE);
+    // Writes that arrived during another put joined a batch instead of getting their own.
+    Assert.assertTrue(batchPuts.get() < total);
+  }
+
+  @Test
+  public void rejectedCommentOnlyFailsItsOwnWrite() throws Exception {
+    CommentWriter writer = newWriter();
+
+    List<IOException> failures = runWriters(writer, index -> newComment(index % 10 == 3));
+    int failed = 0;
+    for (int i = 0; i < failures.size(); i++) {
+      boolean rejected = i % WRITES_PER_THREAD % 10 == 3;
+      Assert.assertEquals("write " + i + " failed", rejected, failures.get(i) != null);
+      if (rejected) {
+        failed++;
+      }
+    }
+
+    int good = THREADS * WRITES_PER_THREAD - failed;
+    Assert.assertEquals(THREADS * (WRITES_PER_THREAD / 10), failed);
+    Assert.assertEquals(good, stored.size());
+    Assert.assertEquals(good, reportedStored.get());
+  }
+
+  @Test
+  public void batchStoredBeforeFailingIsNotStoredTwice() throws Exception {
+    failBatchesAfterStoring = true;
+    CommentWriter writer = newWriter();
+
+    for (IOException failure : runWriters(writer, index -> newComment(false))) {
+      Assert.assertNull(failure);
+    }
+
+    int total = THREADS * WRITES_PER_THREAD;
+    Assert.assertTrue(largestBatch.get() > 1);
+    // Every comment in a failed batch was put twice, but under the same key.
+    Assert.assertTrue(storedEntities.get() > total);
+    Assert.assertEquals(total, stored.size());
+    Assert.assertEquals(total, reportedStored.get());
+  }
+
+  @Test
+  public void loneWriteDoesNotWaitForMoreComments() throws Exception {
+    CommentWriter writer = newWriter();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      executor.submit(() -> {
+        writer.write(newComment(false));
+        return null;
+      }).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } finally {
+      executor.shutdownNow();
+    }
+
+    Assert.assertEquals(1, stored.size());
+    Assert.assertEquals(1, reportedStored.get());
+  }
+
+  private interface CommentSource {
+    Entity next(int index);
+  }
+
+  /**
+   * Runs {@code THREADS} threads that each write {@code WRITES_PER_THREAD} comments. Returns what
+   * each write threw, or null if it succeeded, in thread order and then write order.
+   */
+  private static List<IOException> runWriters(CommentWriter writer, CommentSource comments) {
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    List<Callable<List<IOException>>> threads = new ArrayList<>();
+    for (int t = 0; t < THREADS; t++) {
+      threads.add(() -> {
+        List<IOException> failures = new ArrayList<>();
+        for (int i = 0; i < WRITES_PER_THREAD; i++) {
+          Entity comment = comments.next(i);
+          try {
+            writer.write(comment);
+            failures.add(null);
+          } catch (IOException e) {
+            failures.add(e);
+          }
+        }
+        return failures;
+      });
+    }
+    List<IOException> results = new ArrayList<>();
+    try {
+      for (Future<List<IOException>> thread : executor.invokeAll(threads, TIMEOUT_SECONDS,
+          TimeUnit.SECONDS)) {
+        results.addAll(thread.get());
+      }
+    } catch (Exception e) {
+      throw new AssertionError("writers did not finish", e);
+    } finally {
+      executor.shutdownNow();
+    }
+    return results;
+  }
+
+  private CommentWriter newWriter() {
+    return new CommentWriter(newDatastore(), reportedStored::addAndGet, BATCH_SIZE,
+        MAX_DELAY_MILLIS, false);
+  }
+
+  private static Entity newComment(boolean rejected) {
+    Entity comment = new Entity("Comment");
+    comment.setProperty("rejected", rejected);
+    return comment;
+  }
+
+  /**
+   * A Datastore that takes a moment per put, so writes pile up behind it, and rejects a put
+   * containing any comment with {@code rejected} set. Like the real one, it assigns an id to an
+   * entity stored without one and overwrites an entity stored again under the same key.
+   */
+  private AsyncDatastoreService newDatastore() {
+    return (AsyncDatastoreService) Proxy.newProxyInstance(
+        AsyncDatastoreService.class.getClassLoader(),
+        new Class<?>[] {AsyncDatastoreService.class},
+        (proxy, method, args) -> {
+          if (method.getName().equals("allocateIds") && args.length == 2) {
+            long count = (long) args[1];
+            long start = lastId.getAndAdd(count) + 1;
+            return Futures.immediateFuture(
+                new KeyRange(null, (String) args[0], start, start + count - 1));
+          }
+          if (!method.getName().equals("put") || args.length != 1) {
+            throw new UnsupportedOperationException(method.toString());
+          }
+          List<Entity> entities = new ArrayList<>();
+          if (args[0] instanceof Entity) {
+            entities.add((Entity) args[0]);
+          } else {
+            for (Object entity : (Iterable<?>) args[0]) {
+              entities.add((Entity) entity);
+            }
+            batchPuts.incrementAndGet();
+            largestBatch.accumulateAndGet(entities.size(), Math::max);
+          }
+          Thread.sleep(2);
+
+          for (Entity entity : entities) {
+            if ((boolean) entity.getProperty("rejected")) {
+              return Futures.immediateFailedFuture(new IllegalArgumentException("rejected"));
+            }
+          }
+          List<Key> keys = new ArrayList<>();
+          for (Entity entity : entities) {
+            Key key = entity.getKey();
+            if (!key.isComplete()) {
+              key = KeyFactory.createKey(entity.getKind(), lastId.incrementAndGet());
+            }
+            stored.put(key, entity);
+            keys.add(key);
+          }
+          storedEntities.addAndGet(entities.size());
+          if (failBatchesAfterStoring && entities.size() > 1) {
+            return Futures.immediateFailedFuture(new DatastoreTimeoutException("timed out"));
+          }
+          return args[0] instanceof Entity ? Futures.immediateFuture(keys.get(0))
+              : Futures.immediateFuture(keys);
+        });
+  }
+}
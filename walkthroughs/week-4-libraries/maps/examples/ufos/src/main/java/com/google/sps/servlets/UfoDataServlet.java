@@ -16,10 +16,17 @@ package com.google.sps.servlets;
 
 import com.google.sps.data.UfoSighting;
 import com.google.gson.Gson;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Scanner;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -29,11 +36,14 @@ import javax.servlet.http.HttpServletResponse;
 @WebServlet("/ufo-data")
 public class UfoDataServlet extends HttpServlet {
 
-  private Collection<UfoSighting> ufoSightings;
+  // Serialized, compressed and hashed once in init() so each request only copies bytes.
+  private byte[] json;
+  private byte[] gzippedJson;
+  private String hash;
 
   @Override
-  public void init() {
-    ufoSightings = new ArrayList<>();
+  public void init() throws ServletException {
+    Collection<UfoSighting> ufoSightings = new ArrayList<>();
 
     Scanner scanner = new Scanner(getServletContext().getResourceAsStream("/WEB-INF/ufo-data.csv"));
     while (scanner.hasNextLine()) {
@@ -46,13 +56,77 @@ public class UfoDataServlet extends HttpServlet {
       ufoSightings.add(new UfoSighting(lat, lng));
     }
     scanner.close();
+
+    json = new Gson().toJson(ufoSightings).getBytes(StandardCharsets.UTF_8);
+    try {
+      ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+      try (GZIPOutputStream out = new GZIPOutputStream(gzipped)) {
+        out.write(json);
+      }
+      gzippedJson = gzipped.toByteArray();
+      hash = String.format(
+          "%032x", new BigInteger(1, MessageDigest.getInstance("MD5").digest(json)));
+    } catch (IOException | NoSuchAlgorithmException e) {
+      throw new ServletException(e);
+    }
   }
 
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
-    response.setContentType("application/json");
-    Gson gson = new Gson();
-    String json = gson.toJson(ufoSightings);
-    response.getWriter().println(json);
+    boolean gzip = acceptsGzip(request.getHeader("Accept-Encoding"));
+    // The two encodings are different representations, so they need different ETags.
+    String etag = gzip ? "\"" + hash + "-gzip\"" : "\"" + hash + "\"";
+    response.setHeader("Cache-Control", "no-cache");
+    response.setHeader("Vary", "Accept-Encoding");
+    response.setHeader("ETag", etag);
+    if (matches(request.getHeader("If-None-Match"), etag)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
+    byte[] body = gzip ? gzippedJson : json;
+    response.setContentType("application/json;charset=UTF-8");
+    if (gzip) {
+      response.setHeader("Content-Encoding", "gzip");
+    }
+    response.setContentLength(body.length);
+    response.getOutputStream().write(body);
+  }
+
+  /** Returns whether an If-None-Match header value names the given ETag. */
+  private static boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      if (candidate.startsWith("W/")) {
+        candidate = candidate.substring(2);
+      }
+      if (candidate.equals("*") || candidate.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns whether an Accept-Encoding header value allows gzip, honouring "gzip;q=0". */
+  private static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.trim().split(";");
+      if (parts[0].trim().equalsIgnoreCase("gzip")) {
+        for (int i = 1; i < parts.length; i++) {
+          String param = parts[i].trim().replace(" ", "");
+          if (param.matches("q=0(\\.0*)?")) {
+            return false;
+          }
+        }
+        return true;
+      }
+    }
+    return false;
   }
 }
@@ -0,0 +1,183 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Events indexed by attendee, so a query only looks at the schedules of the people it asks
+ * about rather than at every event. Each attendee's busy time is kept sorted and merged into
+ * disjoint ranges. The index can grow one event at a time with {@link #add}; each update
+ * replaces the affected schedules, so it is safe to query while events are being added.
+ */
+public final class EventIndex {
+
+  /** One attendee's busy time. Never changed once built. */
+  private static final class Schedule {
+    private static final Schedule EMPTY = new Schedule(Collections.<TimeRange>emptyList());
+
+    // Sorted by start and disjoint.
+    private final List<TimeRange> busyTimes;
+    // Built from busyTimes the first time the bitset engine asks for it.
+    private volatile MinuteBitset busyMinutes;
+
+    private Schedule(List<TimeRange> busyTimes) {
+      this.busyTimes = Collections.unmodifiableList(busyTimes);
+    }
+
+    private MinuteBitset getBusyMinutes() {
+      MinuteBitset minutes = busyMinutes;
+      if (minutes == null) {
+        minutes = new MinuteBitset();
+        for (TimeRange busyTime : busyTimes) {
+          minutes.add(busyTime);
+        }
+        busyMinutes = minutes;
+      }
+      return minutes;
+    }
+  }
+
+  private final Map<String, Schedule> schedules = new ConcurrentHashMap<>();
+
+  private EventIndex() {}
+
+  /** Returns an index of everyone attending any of {@code events}. */
+  public static EventIndex of(Collection<Event> events) {
+    return of(events, null);
+  }
+
+  /** 
+   * Returns an index of {@code events} that only covers {@code attendees}, or everyone if it is
+   * null. Each schedule is sorted and merged once, in O(n log n) for n events.
+   */
+  static EventIndex of(Collection<Event> events, Collection<String> attendees) {
+    Map<String, List<TimeRange>> timesByAttendee = new HashMap<>();
+    for (Event event : events) {
+      for (String attendee : event.getAttendees()) {
+        if (attendees == null || attendees.contains(attendee)) {
+          timesByAttendee.computeIfAbsent(attendee, key -> new ArrayList<>()).add(event.getWhen());
+        }
+      }
+    }
+
+    EventIndex index = new EventIndex();
+    for (Map.Entry<String, List<TimeRange>> entry : timesByAttendee.entrySet()) {
+      index.schedules.put(entry.getKey(), new Schedule(merge(entry.getValue())));
+    }
+    return index;
+  }
+
+  /** Adds {@code event} to the schedule of each of its attendees. */
+  public synchronized void add(Event event) {
+    TimeRange when = event.getWhen();
+    if (when.duration() <= 0) {
+      return;
+    }
+    for (String attendee : event.getAttendees()) {
+      List<TimeRange> busyTimes = getBusyTimes(attendee);
+
+      // Find the ranges that overlap or touch the new one and replace them with their union.
+      int first = firstEndingAtOrAfter(busyTimes, when.start());
+      int last = first;
+      int start = when.start();
+      int end = when.end();
+      while (last < busyTimes.size() && busyTimes.get(last).start() <= end) {
+        start = Math.min(start, busyTimes.get(last).start());
+        end = Math.max(end, busyTimes.get(last).end());
+        last++;
+      }
+
+      List<TimeRange> updated = new ArrayList<>(busyTimes.size() + 1 - (last - first));
+      updated.addAll(busyTimes.subList(0, first));
+      updated.add(TimeRange.fromStartEnd(start, end, /* inclusive= */ false));
+      updated.addAll(busyTimes.subList(last, busyTimes.size()));
+      schedules.put(attendee, new Schedule(updated));
+    }
+  }
+
+  /** Returns the busy time of {@code attendee} as sorted, disjoint ranges. */
+  public List<TimeRange> getBusyTimes(String attendee) {
+    return schedules.getOrDefault(attendee, Schedule.EMPTY).busyTimes;
+  }
+
+  /** Returns the busy time of all {@code attendees}; ranges of different people may overlap. */
+  List<TimeRange> getBusyTimes(Collection<String> attendees) {
+    List<TimeRange> busyTimes = new ArrayList<>();
+    for (String attendee : attendees) {
+      busyTimes.addAll(getBusyTimes(attendee));
+    }
+    return busyTimes;
+  }
+
+  /** Returns the minutes any of {@code attendees} is busy, as a new bitset. */
+  MinuteBitset getBusyMinutes(Collection<String> attendees) {
+    MinuteBitset busy = new MinuteBitset();
+    for (String attendee : attendees) {
+      Schedule schedule = schedules.get(attendee);
+      if (schedule != null) {
+        busy.or(schedule.getBusyMinutes());
+      }
+    }
+    return busy;
+  }
+
+  /** Sorts {@code times} and merges overlapping or touching ranges. */
+  private static List<TimeRange> merge(List<TimeRange> times) {
+    Collections.sort(times, TimeRange.ORDER_BY_START);
+    List<TimeRange> merged = new ArrayList<>();
+    int start = 0;
+    int end = -1;
+    for (TimeRange time : times) {
+      if (time.duration() <= 0) {
+        continue;
+      }
+      if (time.start() > end) {
+        if (end > start) {
+          merged.add(TimeRange.fromStartEnd(start, end, /* inclusive= */ false));
+        }
+        start = time.start();
+        end = time.end();
+      } else {
+        end = Math.max(end, time.end());
+      }
+    }
+    if (end > start) {
+      merged.add(TimeRange.fromStartEnd(start, end, /* inclusive= */ false));
+    }
+    return merged;
+  }
+
+  /** Returns the index of the first of sorted {@code times} to end at or after {@code minute}. */
+  private static int firstEndingAtOrAfter(List<TimeRange> times, int minute) {
+    int low = 0;
+    int high = times.size();
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (times.get(middle).end() < minute) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+}
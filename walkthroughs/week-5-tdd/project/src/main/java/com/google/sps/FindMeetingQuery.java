@@ -18,117 +18,262 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /** Container class for {@code query} function. */
 public final class FindMeetingQuery {
+
+  /** How free time is computed. Both engines return the same ranges. */
+  public enum Engine {
+    // Sorts the busy times and merges them in one pass; cost grows with the number of events.
+    SWEEP_LINE,
+    // ORs per-minute busy bitsets of the day; cost is a few hundred word operations per query.
+    BITSET
+  }
+
+  // Below this many requests a batch is answered on one thread rather than split further.
+  private static final int BATCH_SPLIT_THRESHOLD = 16;
+
+  private final Engine engine;
+
+  public FindMeetingQuery() {
+    this(Engine.SWEEP_LINE);
+  }
+
+  public FindMeetingQuery(Engine engine) {
+    this.engine = engine;
+  }
     
-  /** Returns a list of possible time ranges for the meeting request given a list of events. */
+  /** 
+   * Returns a list of possible time ranges for the meeting request given a list of events. If
+   * some ranges suit the optional attendees as well, only those are returned.
+   */
   public Collection<TimeRange> query(Collection<Event> events, MeetingRequest request) {
+    // Only the people in the request matter, so only their schedules are indexed.
+    Set<String> people = new HashSet<>(request.getAttendees());
+    people.addAll(request.getOptionalAttendees());
+    return query(EventIndex.of(events, people), request);
+  }
+
+  /** 
+   * Same as {@link #query(Collection, MeetingRequest)} for events that are already indexed. Only
+   * the requested attendees' schedules are read, however many events the index holds.
+   */
+  public Collection<TimeRange> query(EventIndex index, MeetingRequest request) {
     // Meeting duration cannot be longer than a day.
     if (request.getDuration() > TimeRange.WHOLE_DAY.duration()) {
       return Arrays.asList();
     }
-    if (events.isEmpty() || request.getAttendees().isEmpty()) {
-      return Arrays.asList(TimeRange.WHOLE_DAY);
-    }
 
     // If there are no mandatory attendees, check optional attendees and treat them as mandatory.
     Collection<String> attendees = request.getAttendees();
+    Collection<String> optionalAttendees = request.getOptionalAttendees();
     if (attendees.isEmpty()) {
-      attendees = request.getOptionalAttendees();
-    }
-
-    List<TimeRange> eventTimes = events.stream().filter(
-        event -> !Collections.disjoint(event.getAttendees(), request.getAttendees()))
-        .map(Event::getWhen).collect(Collectors.toList());
-    if (eventTimes.isEmpty()) {
-      return Arrays.asList(TimeRange.WHOLE_DAY);
+      attendees = optionalAttendees;
+      optionalAttendees = Collections.emptySet();
     }
-    Collections.sort(eventTimes, TimeRange.ORDER_BY_START);
 
-    List<TimeRange> possibleTimes = findAvailabilityForMandatoryAttendees(eventTimes, duration);
-
-    // If there were no mandatory attendees or there are no optional attendees, return now.
-    if (attendees.equals(request.getOptionalAttendees()) || 
-        request.getOptionalAttendees().isEmpty()) {
-      return possibleTimes;
+    if (engine == Engine.BITSET) {
+      return queryWithBitsets(index, attendees, optionalAttendees, request.getDuration());
     }
 
-    // Collect time ranges of optional attendees' events.
-    List<TimeRange> optionalTimes = events.stream().filter(
-        event -> !Collections.disjoint(event.getAttendees(), request.getOptionalAttendees()))
-        .map(Event::getWhen).collect(Collectors.toList());
-    if (optionalTimes.isEmpty()) {
+    List<TimeRange> busyTimes = index.getBusyTimes(attendees);
+    List<TimeRange> possibleTimes = findFreeTimes(busyTimes, request.getDuration());
+    if (optionalAttendees.isEmpty()) {
       return possibleTimes;
     }
-    Collections.sort(optionalTimes, TimeRange.ORDER_BY_START);
 
-    List<TimeRange> possibleWithOptional = compareWithOptionalAvailability(optionalTimes, possibleTimes);
+    // The optional attendees' events are just more busy time when everyone should attend.
+    List<TimeRange> busyWithOptional = new ArrayList<>(busyTimes);
+    busyWithOptional.addAll(index.getBusyTimes(optionalAttendees));
+    List<TimeRange> possibleWithOptional = findFreeTimes(busyWithOptional, request.getDuration());
+    return preferOptional(possibleTimes, possibleWithOptional);
+  }
 
-    // Optional attendees cannot make any of the possible time slots (for mandatory attendees).
-    if (possibleWithOptional.isEmpty()) {
+  /** Same as the sweep line, but merges busy time by OR-ing per-minute bitsets. */
+  private static Collection<TimeRange> queryWithBitsets(EventIndex index, 
+    Collection<String> attendees, Collection<String> optionalAttendees, long duration) {
+    MinuteBitset busy = index.getBusyMinutes(attendees);
+    List<TimeRange> possibleTimes = busy.findFreeTimes(duration);
+    if (optionalAttendees.isEmpty()) {
       return possibleTimes;
     }
 
-    return possibleWithOptional;
+    MinuteBitset busyWithOptional = index.getBusyMinutes(optionalAttendees);
+    busyWithOptional.or(busy);
+    return preferOptional(possibleTimes, busyWithOptional.findFreeTimes(duration));
   }
 
-  /** Create a meeting timeslot if there is enough time between firstTime and secondTime. */
-  private static Optional<TimeRange> createDuration(long duration, int firstTime, int secondTime, 
-    boolean inclusive) {
-    if ((secondTime - firstTime) >= duration) {
-      return Optional.of(TimeRange.fromStartEnd(firstTime, secondTime, inclusive));
+  /**
+   * Answers many requests against the same events in one call, in the order given. The events
+   * are indexed once for everyone in the batch, so all requests share each attendee's merged
+   * schedule, and the requests are spread over the cores with the common fork-join pool.
+   */
+  public List<Collection<TimeRange>> queryAll(Collection<Event> events, 
+    Collection<MeetingRequest> requests) {
+    Set<String> people = new HashSet<>();
+    for (MeetingRequest request : requests) {
+      people.addAll(request.getAttendees());
+      people.addAll(request.getOptionalAttendees());
     }
-    return Optional.empty();
+    return queryAll(EventIndex.of(events, people), requests);
   }
 
-  /** Returns a list of time slots that work for mandatory attendees. */
-  private List<TimeRange> findAvailabilityForMandatoryAttendees(
-    List<TimeRange> eventTimes, long duration) {
-    List<TimeRange> possibleTimes = new ArrayList<>();
+  /** Same as {@link #queryAll(Collection, Collection)} for events that are already indexed. */
+  public List<Collection<TimeRange>> queryAll(EventIndex index, 
+    Collection<MeetingRequest> requests) {
+    MeetingRequest[] batch = requests.toArray(new MeetingRequest[0]);
+    List<Collection<TimeRange>> answers = new ArrayList<>(Collections.nCopies(batch.length, null));
+    ForkJoinPool.commonPool().invoke(new BatchTask(index, batch, answers, 0, batch.length));
+    return answers;
+  }
+
+  /** Answers requests [start, end) of a batch, splitting in halves until they are small. */
+  private final class BatchTask extends RecursiveAction {
+    private final EventIndex index;
+    private final MeetingRequest[] batch;
+    // Each task only sets its own positions.
+    private final List<Collection<TimeRange>> answers;
+    private final int start;
+    private final int end;
+
+    private BatchTask(EventIndex index, MeetingRequest[] batch, 
+      List<Collection<TimeRange>> answers, int start, int end) {
+      this.index = index;
+      this.batch = batch;
+      this.answers = answers;
+      this.start = start;
+      this.end = end;
+    }
 
-    createDuration(duration, TimeRange.START_OF_DAY, eventTimes.get(0).start(), /* inclusive= */ false)
-    .ifPresent(possibleTimes::add);
-    for (int i = 0; i < eventTimes.size() - 1; i++) {
-      TimeRange current = eventTimes.get(i);
-      TimeRange next = eventTimes.get(i + 1);
-      if (!current.overlaps(next)) {
-        createDuration(duration, current.end(), next.start(), /* inclusive= */ false)
-        .ifPresent(possibleTimes::add);
-      } 
-      else {
-        // If the second event is completely contained, move on to the next event.
-        if (current.contains(next)) {
-          eventTimes.remove(next);
-          i--;
+    @Override
+    protected void compute() {
+      if (end - start <= BATCH_SPLIT_THRESHOLD) {
+        for (int i = start; i < end; i++) {
+          answers.set(i, query(index, batch[i]));
         }
+        return;
       }
+      int middle = (start + end) >>> 1;
+      invokeAll(new BatchTask(index, batch, answers, start, middle), 
+                new BatchTask(index, batch, answers, middle, end));
     }
-    createDuration(duration, eventTimes.get(eventTimes.size() - 1).end(), 
-    TimeRange.END_OF_DAY, /* inclusive= */ true).ifPresent(possibleTimes::add);
-    
-    return possibleTimes;
   }
 
-  /** Returns a list of time slots that work for both optional and mandatory attendees. */
-  private static List<TimeRange> compareWithOptionalAvailability(Collection<TimeRange> optionalTimes, 
-    Collection<TimeRange> possibleTimes) {
-    List<TimeRange> possibleWithOptional = new ArrayList<TimeRange>(possibleTimes);
-    for (TimeRange optionalTime : optionalTimes) {
-      for (TimeRange possibleTime : possibleTimes) {
-        // Time range cannot conflict with the rest of the possible times, so skip over them.
-        if (optionalTime.end() < possibleTime.start()) {
-          break;
+  /**
+   * Returns the ranges that let as many optional attendees as possible join the mandatory ones,
+   * with that number. Unlike {@link #query}, optional attendees are not all-or-nothing.
+   */
+  public List<MeetingSlot> queryMaximizingOptional(Collection<Event> events, 
+    MeetingRequest request) {
+    Set<String> people = new HashSet<>(request.getAttendees());
+    people.addAll(request.getOptionalAttendees());
+    return queryMaximizingOptional(EventIndex.of(events, people), request);
+  }
+
+  /**
+   * Same as {@link #queryMaximizingOptional(Collection, MeetingRequest)} for indexed events.
+   *
+   * <p>Works on meeting start times: each attendee can attend a meeting starting in some set of
+   * intervals (their free gaps, shortened by the duration). A single sweep over the optional
+   * attendees' intervals with a counter gives, for every start time the mandatory attendees
+   * allow, how many optional attendees can come. This costs O(n log n) in the number of
+   * intervals, so it stays fast with many optional attendees. Returned ranges are split wherever
+   * the set of optional attendees who can come changes.
+   */
+  public List<MeetingSlot> queryMaximizingOptional(EventIndex index, MeetingRequest request) {
+    long duration = request.getDuration();
+    if (duration > TimeRange.WHOLE_DAY.duration()) {
+      return new ArrayList<>();
+    }
+    List<TimeRange> possibleTimes = findFreeTimes(index.getBusyTimes(request.getAttendees()), 
+                                                  duration);
+
+    // Each optional attendee's free gaps as start-time changes: packed (minute << 1 | +1/-1 bit)
+    // so that one sort orders them by minute.
+    List<Long> changes = new ArrayList<>();
+    for (String attendee : request.getOptionalAttendees()) {
+      List<TimeRange> busyTimes = new ArrayList<>(index.getBusyTimes(attendee));
+      for (TimeRange free : findFreeTimes(busyTimes, duration)) {
+        changes.add((long) free.start() << 1 | 1);
+        changes.add((free.end() - duration + 1) << 1);
+      }
+    }
+    Collections.sort(changes);
+
+    // Walk the mandatory attendees' start intervals, cutting them at every change.
+    List<int[]> segments = new ArrayList<>();
+    int next = 0;
+    int count = 0;
+    int maxCount = 0;
+    for (TimeRange possibleTime : possibleTimes) {
+      int firstStart = possibleTime.start();
+      int lastStart = (int) (possibleTime.end() - duration);
+      while (next < changes.size() && (changes.get(next) >> 1) <= firstStart) {
+        count += (changes.get(next++) & 1) == 1 ? 1 : -1;
+      }
+      int segmentStart = firstStart;
+      while (next < changes.size() && (changes.get(next) >> 1) <= lastStart) {
+        int minute = (int) (changes.get(next) >> 1);
+        if (minute > segmentStart) {
+          segments.add(new int[] {segmentStart, minute - 1, count});
+          maxCount = Math.max(maxCount, count);
+          segmentStart = minute;
         }
-        // Remove time range if the optional event overlaps with a possible time range. 
-        if (optionalTime.overlaps(possibleTime)) {
-          possibleWithOptional.remove(possibleTime);
+        while (next < changes.size() && (changes.get(next) >> 1) == minute) {
+          count += (changes.get(next++) & 1) == 1 ? 1 : -1;
         }
       }
+      segments.add(new int[] {segmentStart, lastStart, count});
+      maxCount = Math.max(maxCount, count);
+    }
+
+    List<MeetingSlot> slots = new ArrayList<>();
+    for (int[] segment : segments) {
+      if (segment[2] == maxCount) {
+        // A meeting may start anywhere in the segment, so it may run until duration after it.
+        int length = (int) (segment[1] - segment[0] + duration);
+        slots.add(new MeetingSlot(TimeRange.fromStartDuration(segment[0], length), maxCount));
+      }
+    }
+    return slots;
+  }
+
+  private static Collection<TimeRange> preferOptional(List<TimeRange> possibleTimes, 
+    List<TimeRange> possibleWithOptional) {
+    // Optional attendees cannot make any of the possible time slots (for mandatory attendees).
+    if (possibleWithOptional.isEmpty()) {
+      return possibleTimes;
     }
     return possibleWithOptional;
   }
-}
\ No newline at end of file
+
+  /**
+   * Returns the gaps of at least {@code duration} minutes between {@code busyTimes}, which is
+   * sorted in place. One sweep over the sorted ranges tracks where the busy time seen so far ends,
+   * so overlapping, nested and touching events all merge correctly in O(n log n) overall. Each
+   * attendee's ranges from the index are already sorted, which the sort takes advantage of.
+   */
+  private static List<TimeRange> findFreeTimes(List<TimeRange> busyTimes, long duration) {
+    Collections.sort(busyTimes, TimeRange.ORDER_BY_START);
+
+    List<TimeRange> possibleTimes = new ArrayList<>();
+    int freeFrom = TimeRange.START_OF_DAY;
+    for (TimeRange busyTime : busyTimes) {
+      if (busyTime.start() > freeFrom && busyTime.start() - freeFrom >= duration) {
+        possibleTimes.add(
+            TimeRange.fromStartEnd(freeFrom, busyTime.start(), /* inclusive= */ false));
+      }
+      freeFrom = Math.max(freeFrom, busyTime.end());
+    }
+    if (freeFrom <= TimeRange.END_OF_DAY && TimeRange.WHOLE_DAY.end() - freeFrom >= duration) {
+      possibleTimes.add(
+          TimeRange.fromStartEnd(freeFrom, TimeRange.END_OF_DAY, /* inclusive= */ true));
+    }
+    return possibleTimes;
+  }
+}
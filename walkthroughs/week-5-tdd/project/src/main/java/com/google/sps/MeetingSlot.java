@@ -0,0 +1,60 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+/**
+ * A range of time that can hold a meeting, together with how many of the meeting's optional
+ * attendees are free for any meeting of the requested duration placed inside it.
+ */
+public final class MeetingSlot {
+  private final TimeRange when;
+  private final int optionalAttendees;
+
+  public MeetingSlot(TimeRange when, int optionalAttendees) {
+    this.when = when;
+    this.optionalAttendees = optionalAttendees;
+  }
+
+  /**
+   * Returns the range the meeting can be placed in.
+   */
+  public TimeRange getWhen() {
+    return when;
+  }
+
+  /**
+   * Returns the number of optional attendees who can attend a meeting in this range.
+   */
+  public int getOptionalAttendees() {
+    return optionalAttendees;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    return other instanceof MeetingSlot 
+        && when.equals(((MeetingSlot) other).when) 
+        && optionalAttendees == ((MeetingSlot) other).optionalAttendees;
+  }
+
+  @Override
+  public int hashCode() {
+    return when.hashCode() * 31 + optionalAttendees;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s with %d optional attendees", when, optionalAttendees);
+  }
+}
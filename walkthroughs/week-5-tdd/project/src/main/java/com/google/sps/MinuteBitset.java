@@ -0,0 +1,107 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The minutes of one day as a bitset, one bit per minute with a set bit meaning busy. A whole day
+ * is only 1440 minutes, so it fits in 23 longs: merging schedules is a word-wise OR and free
+ * ranges are found by jumping between set and clear bits with {@link Long#numberOfTrailingZeros}.
+ */
+final class MinuteBitset {
+
+  private static final int MINUTES = TimeRange.WHOLE_DAY.duration();
+  private static final int WORDS = (MINUTES + 63) / 64;
+
+  private final long[] words = new long[WORDS];
+
+  /** Marks every minute of {@code range} that falls within the day as busy. */
+  void add(TimeRange range) {
+    int start = Math.max(range.start(), 0);
+    int end = Math.min(range.end(), MINUTES);
+    if (start >= end) {
+      return;
+    }
+    int startWord = start >>> 6;
+    int lastWord = (end - 1) >>> 6;
+    // Shifts only use the low 6 bits, so these are the masks from start and up to end.
+    long startMask = -1L << start;
+    long endMask = -1L >>> -end;
+    if (startWord == lastWord) {
+      words[startWord] |= startMask & endMask;
+      return;
+    }
+    words[startWord] |= startMask;
+    for (int i = startWord + 1; i < lastWord; i++) {
+      words[i] = -1L;
+    }
+    words[lastWord] |= endMask;
+  }
+
+  /** Marks every minute that is busy in {@code other} as busy in this bitset too. */
+  void or(MinuteBitset other) {
+    for (int i = 0; i < WORDS; i++) {
+      words[i] |= other.words[i];
+    }
+  }
+
+  /** Returns the runs of free minutes that last at least {@code duration} minutes, in order. */
+  List<TimeRange> findFreeTimes(long duration) {
+    List<TimeRange> possibleTimes = new ArrayList<>();
+    int minute = nextFree(0);
+    while (minute < MINUTES) {
+      int busy = nextBusy(minute);
+      if (busy - minute >= duration) {
+        possibleTimes.add(TimeRange.fromStartDuration(minute, busy - minute));
+      }
+      minute = nextFree(busy);
+    }
+    return possibleTimes;
+  }
+
+  /** Returns the first busy minute at or after {@code from}, or the end of the day. */
+  private int nextBusy(int from) {
+    if (from >= MINUTES) {
+      return MINUTES;
+    }
+    int i = from >>> 6;
+    long word = words[i] & (-1L << from);
+    while (word == 0) {
+      if (++i == WORDS) {
+        return MINUTES;
+      }
+      word = words[i];
+    }
+    return Math.min((i << 6) + Long.numberOfTrailingZeros(word), MINUTES);
+  }
+
+  /** Returns the first free minute at or after {@code from}, or the end of the day. */
+  private int nextFree(int from) {
+    if (from >= MINUTES) {
+      return MINUTES;
+    }
+    int i = from >>> 6;
+    long word = ~words[i] & (-1L << from);
+    while (word == 0) {
+      if (++i == WORDS) {
+        return MINUTES;
+      }
+      word = ~words[i];
+    }
+    return Math.min((i << 6) + Long.numberOfTrailingZeros(word), MINUTES);
+  }
+}
@@ -14,10 +14,10 @@
 
 package com.google.sps.servlets;
 
+import com.google.sps.EventIndex;
 import com.google.sps.Events;
 import com.google.sps.FindMeetingQuery;
 import com.google.sps.MeetingRequest;
-import com.google.sps.TimeRange;
 import com.google.gson.Gson;
 import java.io.IOException;
 import java.util.Arrays;
@@ -29,6 +29,9 @@ import javax.servlet.http.HttpServletResponse;
 
 @WebServlet("/query")
 public class QueryServlet extends HttpServlet {
+  // Built once, so each query only reads the schedules of the people it asks about.
+  static final EventIndex EVENT_INDEX = EventIndex.of(Arrays.asList(Events.events));
+
   @Override
   public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
     Gson gson = new Gson();
@@ -36,10 +39,12 @@ public class QueryServlet extends HttpServlet {
     // Convert the JSON to an instance of MeetingRequest.
     MeetingRequest meetingRequest = gson.fromJson(request.getReader(), MeetingRequest.class);
 
-    // Find the possible meeting times.
+    // Find the possible meeting times. With ?optional=maximize, return the times that suit the
+    // most optional attendees, each with how many of them can come.
     FindMeetingQuery findMeetingQuery = new FindMeetingQuery();
-    Collection<TimeRange> answer =
-        findMeetingQuery.query(Arrays.asList(Events.events), meetingRequest);
+    Collection<?> answer = "maximize".equals(request.getParameter("optional"))
+        ? findMeetingQuery.queryMaximizingOptional(EVENT_INDEX, meetingRequest)
+        : findMeetingQuery.query(EVENT_INDEX, meetingRequest);
 
     // Convert the times to JSON
     String jsonResponse = gson.toJson(answer);
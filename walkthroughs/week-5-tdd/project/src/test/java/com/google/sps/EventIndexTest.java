@@ -0,0 +1,86 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link EventIndex}. */
+@RunWith(JUnit4.class)
+public final class EventIndexTest {
+  // Some people that we can use in our tests.
+  private static final String PERSON_A = "Person A";
+  private static final String PERSON_B = "Person B";
+
+  private static final int TIME_0800AM = TimeRange.getTimeInMinutes(8, 0);
+  private static final int TIME_0830AM = TimeRange.getTimeInMinutes(8, 30);
+  private static final int TIME_0900AM = TimeRange.getTimeInMinutes(9, 0);
+  private static final int TIME_1000AM = TimeRange.getTimeInMinutes(10, 0);
+  private static final int TIME_1100AM = TimeRange.getTimeInMinutes(11, 0);
+
+  @Test
+  public void unknownAttendeeIsFree() {
+    EventIndex index = EventIndex.of(Collections.<Event>emptyList());
+
+    Assert.assertEquals(Collections.emptyList(), index.getBusyTimes(PERSON_A));
+  }
+
+  @Test
+  public void addMergesOverlappingAndTouchingEvents() {
+    EventIndex index = EventIndex.of(Collections.<Event>emptyList());
+    index.add(new Event("Event 1", TimeRange.fromStartEnd(TIME_0900AM, TIME_1000AM, false),
+        Arrays.asList(PERSON_A)));
+    index.add(new Event("Event 2", TimeRange.fromStartEnd(TIME_1100AM, TimeRange.END_OF_DAY, true),
+        Arrays.asList(PERSON_A, PERSON_B)));
+    // Touches the first event and overlaps nothing else.
+    index.add(new Event("Event 3", TimeRange.fromStartEnd(TIME_0800AM, TIME_0900AM, false),
+        Arrays.asList(PERSON_A)));
+    // Contained in the merged 8:00-10:00 range.
+    index.add(new Event("Event 4", TimeRange.fromStartEnd(TIME_0830AM, TIME_0900AM, false),
+        Arrays.asList(PERSON_A)));
+
+    List<TimeRange> expected =
+        Arrays.asList(TimeRange.fromStartEnd(TIME_0800AM, TIME_1000AM, false),
+            TimeRange.fromStartEnd(TIME_1100AM, TimeRange.END_OF_DAY, true));
+    Assert.assertEquals(expected, index.getBusyTimes(PERSON_A));
+    Assert.assertEquals(expected.subList(1, 2), index.getBusyTimes(PERSON_B));
+  }
+
+  @Test
+  public void incrementalIndexMatchesBulkIndex() {
+    Random random = new Random(7);
+    List<Event> events = new ArrayList<>();
+    EventIndex incremental = EventIndex.of(Collections.<Event>emptyList());
+    for (int i = 0; i < 500; i++) {
+      int start = random.nextInt(TimeRange.WHOLE_DAY.duration());
+      int duration = random.nextInt(Math.min(120, TimeRange.WHOLE_DAY.end() - start)) + 1;
+      Event event = new Event("Event " + i, TimeRange.fromStartDuration(start, duration),
+          random.nextBoolean() ? Arrays.asList(PERSON_A) : Arrays.asList(PERSON_A, PERSON_B));
+      events.add(event);
+      incremental.add(event);
+    }
+
+    EventIndex bulk = EventIndex.of(events);
+    Assert.assertEquals(bulk.getBusyTimes(PERSON_A), incremental.getBusyTimes(PERSON_A));
+    Assert.assertEquals(bulk.getBusyTimes(PERSON_B), incremental.getBusyTimes(PERSON_B));
+  }
+}
@@ -19,6 +19,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -416,5 +417,214 @@ public final class FindMeetingQueryTest {
     Assert.assertEquals(expected, actual);
   }
 
-}
+  @Test
+  public void chainedOverlappingEvents() {
+    // A chain of events that partly overlap, with one nested inside the first. The busy time must
+    // be merged across the whole chain, not just between neighbouring events.
+    //
+    // Events  :       |----A----|        |-A-|
+    //                   |-B-|
+    //                       |---C---|
+    // Day     : |-----------------------------------|
+    // Options : |--1--|             |-2-|    |--3--|
+
+    Collection<Event> events = Arrays.asList(
+        new Event("Event 1", TimeRange.fromStartDuration(TIME_0800AM, DURATION_90_MINUTES),
+            Arrays.asList(PERSON_A)),
+        new Event("Event 2", TimeRange.fromStartDuration(TIME_0830AM, DURATION_30_MINUTES),
+            Arrays.asList(PERSON_B)),
+        new Event("Event 3", TimeRange.fromStartDuration(TIME_0900AM, DURATION_60_MINUTES),
+            Arrays.asList(PERSON_C)),
+        new Event("Event 4", TimeRange.fromStartDuration(TIME_1100AM, DURATION_30_MINUTES),
+            Arrays.asList(PERSON_A)));
+
+    MeetingRequest request =
+        new MeetingRequest(Arrays.asList(PERSON_A, PERSON_B, PERSON_C), DURATION_30_MINUTES);
+
+    Collection<TimeRange> actual = query.query(events, request);
+    Collection<TimeRange> expected =
+        Arrays.asList(TimeRange.fromStartEnd(TimeRange.START_OF_DAY, TIME_0800AM, false),
+            TimeRange.fromStartEnd(TIME_1000AM, TIME_1100AM, false),
+            TimeRange.fromStartEnd(TIME_1100AM + DURATION_30_MINUTES, TimeRange.END_OF_DAY, true));
+
+    Assert.assertEquals(expected, actual);
+  }
+
+  @Test
+  public void bitsetEngineMatchesSweepLine() {
+    // Random schedules, including events that run into the end of the day, must give the same
+    // options with either engine.
+    Random random = new Random(42);
+    List<String> people = Arrays.asList(PERSON_A, PERSON_B, PERSON_C, "Person D", "Person E");
+    FindMeetingQuery bitsetQuery = new FindMeetingQuery(FindMeetingQuery.Engine.BITSET);
+
+    for (int round = 0; round < 200; round++) {
+      List<Event> events = new ArrayList<>();
+      int numEvents = random.nextInt(30);
+      for (int i = 0; i < numEvents; i++) {
+        int start = random.nextInt(TimeRange.WHOLE_DAY.duration());
+        int duration = random.nextInt(Math.min(180, TimeRange.WHOLE_DAY.end() - start)) + 1;
+        events.add(new Event("Event " + i, TimeRange.fromStartDuration(start, duration),
+            people.subList(random.nextInt(people.size()), people.size())));
+      }
+
+      MeetingRequest request = new MeetingRequest(
+          people.subList(0, random.nextInt(3)), DURATION_15_MINUTES * (random.nextInt(8) + 1));
+      for (String person : people.subList(3, 3 + random.nextInt(3))) {
+        request.addOptionalAttendee(person);
+      }
+
+      Assert.assertEquals(query.query(events, request), bitsetQuery.query(events, request));
+    }
+  }
+
+  @Test
+  public void maximizeOptionalPicksSlotMostCanAttend() {
+    // Optional attendees are each busy at different times, and only one start time suits all
+    // three of them. Before 9:00 at most two can come, and after 9:30 at most one.
+    //
+    // Events  : |----A----|                     |----A----|
+    //                     |--B--|
+    //                     |C|         |---C---|
+    //                                   |--D--|
+    // Day     : |-------------------------------------------|
+    // Options :                 |--1--|
+
+    Collection<Event> events = Arrays.asList(
+        new Event("Event 1", TimeRange.fromStartEnd(TimeRange.START_OF_DAY, TIME_0800AM, false),
+            Arrays.asList(PERSON_A)),
+        new Event("Event 2", TimeRange.fromStartEnd(TIME_1100AM, TimeRange.END_OF_DAY, true),
+            Arrays.asList(PERSON_A)),
+        new Event("Event 3", TimeRange.fromStartEnd(TIME_0800AM, TIME_0900AM, false),
+            Arrays.asList(PERSON_B)),
+        new Event("Event 4", TimeRange.fromStartEnd(TIME_0800AM, TIME_0830AM, false),
+            Arrays.asList(PERSON_C)),
+        new Event("Event 5", TimeRange.fromStartEnd(TIME_1000AM, TIME_1100AM, false),
+            Arrays.asList(PERSON_C)),
+        new Event("Event 6", TimeRange.fromStartEnd(TIME_0930AM, TIME_1100AM, false),
+            Arrays.asList("Person D")));
 
+    MeetingRequest request = new MeetingRequest(Arrays.asList(PERSON_A), DURATION_30_MINUTES);
+    request.addOptionalAttendee(PERSON_B);
+    request.addOptionalAttendee(PERSON_C);
+    request.addOptionalAttendee("Person D");
+
+    List<MeetingSlot> actual = query.queryMaximizingOptional(events, request);
+    List<MeetingSlot> expected = Arrays.asList(
+        new MeetingSlot(TimeRange.fromStartDuration(TIME_0900AM, DURATION_30_MINUTES), 3));
+
+    Assert.assertEquals(expected, actual);
+  }
+
+  @Test
+  public void maximizeOptionalMatchesQueryWhenEveryoneFits() {
+    // When some times suit every optional attendee, they are exactly the times query returns.
+    Collection<Event> events = Arrays.asList(
+        new Event("Event 1", TimeRange.fromStartDuration(TIME_0800AM, DURATION_30_MINUTES),
+            Arrays.asList(PERSON_A)),
+        new Event("Event 2", TimeRange.fromStartDuration(TIME_0900AM, DURATION_30_MINUTES),
+            Arrays.asList(PERSON_B)),
+        new Event("Event 3", TimeRange.fromStartDuration(TIME_0830AM, DURATION_30_MINUTES),
+            Arrays.asList(PERSON_C)));
+    MeetingRequest request =
+        new MeetingRequest(Arrays.asList(PERSON_A, PERSON_B), DURATION_30_MINUTES);
+    request.addOptionalAttendee(PERSON_C);
+
+    List<MeetingSlot> expected = new ArrayList<>();
+    for (TimeRange range : query.query(events, request)) {
+      expected.add(new MeetingSlot(range, 1));
+    }
+
+    Assert.assertEquals(expected, query.queryMaximizingOptional(events, request));
+  }
+
+  @Test
+  public void maximizeOptionalIsOptimal() {
+    // Check every start time by brute force against random schedules with many optional people.
+    Random random = new Random(24);
+    for (int round = 0; round < 50; round++) {
+      List<String> optional = new ArrayList<>();
+      List<Event> events = new ArrayList<>();
+      for (int person = 0; person < 12; person++) {
+        optional.add("Optional " + person);
+        for (int i = random.nextInt(6); i > 0; i--) {
+          int start = random.nextInt(TimeRange.WHOLE_DAY.duration());
+          int duration = random.nextInt(Math.min(240, TimeRange.WHOLE_DAY.end() - start)) + 1;
+          events.add(new Event("Event", TimeRange.fromStartDuration(start, duration),
+              Arrays.asList(person < 2 ? "Mandatory " + person : "Optional " + person)));
+        }
+      }
+      int duration = DURATION_15_MINUTES * (random.nextInt(6) + 1);
+      MeetingRequest request =
+          new MeetingRequest(Arrays.asList("Mandatory 0", "Mandatory 1"), duration);
+      for (String person : optional) {
+        request.addOptionalAttendee(person);
+      }
+
+      int[] free = new int[TimeRange.WHOLE_DAY.duration()];
+      int best = -1;
+      for (int start = 0; start + duration <= TimeRange.WHOLE_DAY.end(); start++) {
+        TimeRange meeting = TimeRange.fromStartDuration(start, duration);
+        Collection<String> busy = new ArrayList<>();
+        for (Event event : events) {
+          if (event.getWhen().overlaps(meeting)) {
+            busy.addAll(event.getAttendees());
+          }
+        }
+        if (busy.contains("Mandatory 0") || busy.contains("Mandatory 1")) {
+          free[start] = -1;
+          continue;
+        }
+        for (String person : optional) {
+          free[start] += busy.contains(person) ? 0 : 1;
+        }
+        best = Math.max(best, free[start]);
+      }
+
+      List<MeetingSlot> slots = query.queryMaximizingOptional(events, request);
+      Assert.assertEquals(best == -1, slots.isEmpty());
+      int coveredStarts = 0;
+      for (MeetingSlot slot : slots) {
+        Assert.assertEquals(best, slot.getOptionalAttendees());
+        TimeRange when = slot.getWhen();
+        for (int start = when.start(); start + duration <= when.end(); start++) {
+          Assert.assertEquals(best, free[start]);
+          coveredStarts++;
+        }
+      }
+      int bestStarts = 0;
+      for (int start = 0; start + duration <= TimeRange.WHOLE_DAY.end(); start++) {
+        bestStarts += free[start] == best ? 1 : 0;
+      }
+      Assert.assertEquals(bestStarts, coveredStarts);
+    }
+  }
+
+  @Test
+  public void queryAllMatchesQuery() {
+    // A batch big enough to be split across threads must give each request's own answer, in order.
+    Random random = new Random(25);
+    List<String> people = Arrays.asList(PERSON_A, PERSON_B, PERSON_C, "Person D", "Person E");
+    List<Event> events = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      int start = random.nextInt(TimeRange.WHOLE_DAY.duration());
+      int duration = random.nextInt(Math.min(90, TimeRange.WHOLE_DAY.end() - start)) + 1;
+      events.add(new Event("Event " + i, TimeRange.fromStartDuration(start, duration),
+          Arrays.asList(people.get(random.nextInt(people.size())))));
+    }
+
+    List<MeetingRequest> requests = new ArrayList<>();
+    List<Collection<TimeRange>> expected = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      MeetingRequest request = new MeetingRequest(
+          people.subList(random.nextInt(people.size()), people.size()), 
+          DURATION_15_MINUTES * (random.nextInt(4) + 1));
+      request.addOptionalAttendee(people.get(random.nextInt(people.size())));
+      requests.add(request);
+      expected.add(query.query(events, request));
+    }
+
+    Assert.assertEquals(expected, query.queryAll(events, requests));
+  }
+
+}